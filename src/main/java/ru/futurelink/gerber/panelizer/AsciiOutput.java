@@ -0,0 +1,181 @@
+package ru.futurelink.gerber.panelizer;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered writer of ASCII text and numbers for Gerber and Excellon output.
+ * Numbers are formatted straight into the byte buffer, which is written to
+ * the stream by whole chunks.
+ */
+public class AsciiOutput implements Flushable {
+    private final static int bufferSize = 64 * 1024;
+    private final static int maxNumberLength = 20;
+    private final static double[] powersOfTen = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12
+    };
+
+    private final OutputStream stream;
+    private final byte[] buffer;
+    private final byte[] digits;
+    private int position;
+
+    public AsciiOutput(OutputStream stream) {
+        this.stream = stream;
+        this.buffer = new byte[bufferSize];
+        this.digits = new byte[maxNumberLength];
+    }
+
+    private void ensure(int length) throws IOException {
+        if (position + length > buffer.length) {
+            stream.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    public final AsciiOutput write(char chr) throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) chr;
+        return this;
+    }
+
+    /**
+     * Writes the string, any non-ASCII string is written in UTF-8.
+     */
+    public final AsciiOutput write(String str) throws IOException {
+        var length = str.length();
+        for (var i = 0; i < length; i++) {
+            if (str.charAt(i) >= 0x80) return write(str.getBytes(StandardCharsets.UTF_8));
+        }
+        if (length > buffer.length) return write(str.getBytes(StandardCharsets.US_ASCII));
+        ensure(length);
+        for (var i = 0; i < length; i++) {
+            buffer[position++] = (byte) str.charAt(i);
+        }
+        return this;
+    }
+
+    public final AsciiOutput write(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length) {
+            flushBuffer();
+            stream.write(bytes);
+        } else {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+        return this;
+    }
+
+    /**
+     * Writes decimal integer, padded with leading zeroes to the minimal count of digits.
+     */
+    public final AsciiOutput write(long value, int minDigits) throws IOException {
+        ensure(maxNumberLength + minDigits);
+        if (value < 0) {
+            buffer[position++] = '-';
+        }
+        var count = toDigits(value);
+        for (var i = count; i < minDigits; i++) {
+            buffer[position++] = '0';
+        }
+        while (count > 0) {
+            buffer[position++] = digits[--count];
+        }
+        return this;
+    }
+
+    public final AsciiOutput write(long value) throws IOException {
+        return write(value, 1);
+    }
+
+    /**
+     * Writes fixed point coordinate without decimal point, as Gerber format defines.
+     * @param value coordinate scaled to integer, see scale()
+     * @param length count of integer and fractional digits in the format
+     */
+    public final AsciiOutput writeFixed(long value, int length, boolean omitLeadingZeroes, boolean omitTrailingZeroes)
+            throws IOException {
+        if (omitLeadingZeroes) return write(value, 1);
+
+        ensure(maxNumberLength + length);
+        if (value < 0) {
+            buffer[position++] = '-';
+        }
+        var start = position;
+        var count = toDigits(value);
+        for (var i = count; i < length; i++) {
+            buffer[position++] = '0';
+        }
+        while (count > 0) {
+            buffer[position++] = digits[--count];
+        }
+        if (omitTrailingZeroes) {
+            while ((position > start + 1) && (buffer[position - 1] == '0')) position--;
+        }
+        return this;
+    }
+
+    /**
+     * Writes decimal number with exactly the specified count of fractional digits.
+     */
+    public final AsciiOutput writeDecimal(double value, int fractionalLen) throws IOException {
+        var scaled = scale(value, fractionalLen);
+        ensure(maxNumberLength + fractionalLen + 2);
+        if (scaled < 0) {
+            buffer[position++] = '-';
+        }
+        var count = toDigits(scaled);
+        for (var i = count; i <= fractionalLen; i++) {
+            digits[i] = '0';
+        }
+        count = Math.max(count, fractionalLen + 1);
+        while (count > fractionalLen) {
+            buffer[position++] = digits[--count];
+        }
+        if (fractionalLen > 0) {
+            buffer[position++] = '.';
+            while (count > 0) {
+                buffer[position++] = digits[--count];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Scales decimal value to integer with the specified count of fractional digits.
+     * It is rounded to the nearest integer, halves are rounded away from zero.
+     */
+    public static long scale(double value, int fractionalLen) {
+        var scaled = Math.abs(value) * powersOfTen[fractionalLen] + 0.5;
+        if (scaled >= Long.MAX_VALUE) throw new ArithmeticException("Value is too large " + value);
+        var result = (long) scaled;
+        return (value < 0) ? -result : result;
+    }
+
+    // Puts digits of absolute value into digits in reverse order
+    private int toDigits(long value) {
+        var count = 0;
+        do {
+            var digit = value % 10;
+            digits[count++] = (byte) ('0' + ((digit < 0) ? -digit : digit));
+            value /= 10;
+        } while (value != 0);
+        return count;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            stream.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        stream.flush();
+    }
+}
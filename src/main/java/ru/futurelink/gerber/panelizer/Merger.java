@@ -4,6 +4,9 @@ import ru.futurelink.gerber.panelizer.exceptions.MergerException;
 
 abstract public class Merger {
     public abstract Layer getLayer();
+    /**
+     * Starts a new layer, so the one given out before is never changed after its merge.
+     */
     public abstract void clean();
     public abstract void add(Layer layer, double xOffset, double yOffset) throws MergerException;
 }
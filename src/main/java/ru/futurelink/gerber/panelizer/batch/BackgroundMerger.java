@@ -0,0 +1,117 @@
+package ru.futurelink.gerber.panelizer.batch;
+
+import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.exceptions.MergerException;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges layers for display on its own thread. Each merge takes a snapshot
+ * of the layout into the merger of this thread, so the layout can be edited
+ * while it runs. A newer merge interrupts the one in flight, and only the
+ * latest merge gives its result.
+ */
+public class BackgroundMerger {
+    /**
+     * Merged batch with validity of features by their ids. Merged layers
+     * are not changed after the merge, so they can be painted on other thread.
+     */
+    public record Result(long sequence, Batch batch, Map<UUID, Boolean> validFeatures) {}
+
+    private final BatchMerger merger;
+    private final ExecutorService executor;
+    private Future<?> current;
+    private long sequence;
+    // Types submitted and not merged yet, a cancelled merge leaves its types to the next one
+    private final EnumSet<Layer.Type> unmerged = EnumSet.noneOf(Layer.Type.class);
+
+    private final static Logger log = Logger.getLogger("BackgroundMerger");
+
+    public BackgroundMerger(String name) {
+        merger = new BatchMerger(name);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "BackgroundMerger");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Merges layer types with the layout of snapshot, together with types of
+     * cancelled merges. Types are merged in their order, so drills go last.
+     * The result is given to the consumer on the merge thread.
+     */
+    public final synchronized Future<?> submit(BatchMerger.Snapshot snapshot, Collection<Layer.Type> types,
+                                               Consumer<Result> done) {
+        var number = ++sequence;
+        if (current != null) current.cancel(true);
+        unmerged.addAll(types);
+        var merged = EnumSet.copyOf(unmerged);
+        current = executor.submit(() -> {
+            var start = System.nanoTime();
+            try {
+                merger.apply(snapshot);
+                for (var type : merged) merger.mergeLayer(type);
+                var valid = new HashMap<UUID, Boolean>();
+                var features = merger.features();
+                while (features.hasNext()) {
+                    var f = features.next();
+                    valid.put(f.getId(), f.isValid());
+                }
+                var result = new Result(number, merger.getMergedBatch(), valid);
+                synchronized (this) {
+                    if ((number != sequence) || Thread.currentThread().isInterrupted()) return;
+                    unmerged.clear();
+                }
+                log.log(Level.FINE, "Background merge {0} done in {1} ms",
+                        new Object[] { number, (System.nanoTime() - start) / 1000000 });
+                done.accept(result);
+            } catch (MergerException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    log.log(Level.FINE, "Background merge {0} is cancelled", number);
+                } else {
+                    log.log(Level.WARNING, "Background merge failed: {0}", e.getMessage());
+                }
+            }
+        });
+        return current;
+    }
+
+    /**
+     * True if no merge was submitted after the one of result.
+     */
+    public final synchronized boolean isLatest(Result result) {
+        return result.sequence() == sequence;
+    }
+
+    /**
+     * Cancels the merge in flight and forgets the layout merged before.
+     */
+    public final synchronized void clear() {
+        sequence++;
+        unmerged.clear();
+        if (current != null) current.cancel(true);
+        current = executor.submit(merger::clear);
+    }
+
+    /**
+     * Cancels the merge in flight and stops the merge thread, no merges
+     * can be submitted after that.
+     */
+    public final synchronized void close() {
+        sequence++;
+        unmerged.clear();
+        if (current != null) current.cancel(true);
+        executor.shutdownNow();
+    }
+}
@@ -1,6 +1,7 @@
 package ru.futurelink.gerber.panelizer.batch;
 
 import lombok.Getter;
+import lombok.Setter;
 import ru.futurelink.gerber.panelizer.Layer;
 import ru.futurelink.gerber.panelizer.Merger;
 import ru.futurelink.gerber.panelizer.canvas.Point;
@@ -11,8 +12,14 @@ import ru.futurelink.gerber.panelizer.exceptions.MergerException;
 import ru.futurelink.gerber.panelizer.gbr.Gerber;
 import ru.futurelink.gerber.panelizer.gbr.GerberCanvas;
 import ru.futurelink.gerber.panelizer.gbr.GerberMerger;
+import ru.futurelink.gerber.panelizer.gbr.cmd.SR;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class BatchMerger {
     @Getter private final String name;
@@ -20,6 +27,14 @@ public class BatchMerger {
     private final ArrayList<Feature> features;
     private final HashMap<UUID, Batch> batches;
     private final ArrayList<BatchInstance> batchInstances;
+    private final EnumMap<Layer.Type, Integer> mergeCounts;
+    private final EnumMap<Layer.Type, Long> mergeTimes;
+    private final EnumMap<Layer.Type, GerberCanvas> canvases;
+    // Put regular arrays of instances into step and repeat blocks, it is for export only
+    @Getter @Setter private boolean stepAndRepeat;
+
+    private final static Logger log = Logger.getLogger("BatchMerger");
+    private final static double gridTolerance = 1e-6;      // Offsets closer than that are equal in grids
 
     public static class BatchInstance {
         @Getter private final UUID id;
@@ -81,12 +96,20 @@ public class BatchMerger {
         }
     }
 
+    /**
+     * Copy of the layout, instances and features, to merge it apart from the edited one.
+     */
+    public record Snapshot(List<BatchInstance> instances, List<Feature> features) {}
+
     public BatchMerger(String name) {
         this.name = name;
         this.layerMergers = new HashMap<>();
         this.batches = new HashMap<>();
         this.batchInstances = new ArrayList<>();
         this.features = new ArrayList<>();
+        this.mergeCounts = new EnumMap<>(Layer.Type.class);
+        this.mergeTimes = new EnumMap<>(Layer.Type.class);
+        this.canvases = new EnumMap<>(Layer.Type.class);
     }
 
     public final String getBatchName(UUID id) {
@@ -111,44 +134,212 @@ public class BatchMerger {
         this.batchInstances.add(new BatchInstance(id, batch, new Point(xOffset, yOffset)));
     }
 
-    private Merger getMerger(Layer.Type type, boolean clean) {
+    private Merger getMerger(Layer.Type type) {
         if (!layerMergers.containsKey(type)) {
-            if ((type == Layer.Type.TopDrill) || (type == Layer.Type.BottomDrill)) {
+            if (isDrill(type)) {
                 layerMergers.put(type, new ExcellonMerger(type, name));
             } else {
                 layerMergers.put(type, new GerberMerger(type, name));
             }
-        } else {
-            if (clean) layerMergers.get(type).clean();
         }
         return layerMergers.get(type);
     }
 
     public final void mergeLayer(Layer.Type type) throws MergerException {
-        var merger = getMerger(type, true);
-        for (var inst : batchInstances) {
-            var sourcePosition = inst.getOffset();
-            merger.add(
-                    inst.batch.getLayer(type),
-                    sourcePosition.getX(),
-                    sourcePosition.getY()
-            );
+        var start = System.nanoTime();
+        var merger = getMerger(type);
+        if (merger instanceof GerberMerger g) {
+            // Instances are kept as segments, only the moved ones are translated again
+            var grids = (stepAndRepeat && !isAffectedByFeatures(type)) ? grids() : null;
+            g.begin();
+            for (var inst : batchInstances) {
+                if (Thread.currentThread().isInterrupted()) throw new MergerException("Merge is interrupted");
+                var layer = inst.batch.getLayer(type);
+                var grid = (grids != null) ? grids.get(inst.getBatch()) : null;
+                if (grid == null) {
+                    g.place(inst.getId(), layer, inst.getOffset().getX(), inst.getOffset().getY());
+                } else if (grid.first() == inst) {
+                    g.place(inst.getId(), layer, inst.getOffset().getX(), inst.getOffset().getY(), grid.repeat());
+                }
+            }
+            g.end();
+        } else {
+            merger.clean();
+            for (var inst : batchInstances) {
+                if (Thread.currentThread().isInterrupted()) throw new MergerException("Merge is interrupted");
+                var sourcePosition = inst.getOffset();
+                merger.add(
+                        inst.batch.getLayer(type),
+                        sourcePosition.getX(),
+                        sourcePosition.getY()
+                );
+            }
         }
 
         // Update feature data for specified layer
         updateFeatures(type);
+
+        var time = System.nanoTime() - start;
+        synchronized (mergeCounts) {
+            mergeCounts.merge(type, 1, Integer::sum);
+            mergeTimes.put(type, time);
+        }
+        log.log(Level.INFO, "Merged layer {0} in {1} ms", new Object[] { type, time / 1000000 });
     }
 
     // Merge all layers from all batches
     // ---------------------------------
     public final void merge() throws MergerException {
+        for (var type : layerTypes()) {
+            mergeLayer(type);
+        }
+    }
+
+    /**
+     * Merges layers concurrently on the executor. Layers that features do not
+     * affect are independent and merged in parallel, the others (and drills that
+     * need outline features calculated) are merged one by one in the same order
+     * as merge() does, so the result is the same.
+     */
+    public final void merge(ExecutorService executor) throws MergerException {
+        var types = layerTypes();
+        var sequential = new ArrayList<Layer.Type>();
+        var tasks = new ArrayList<Future<?>>();
+        for (var type : types) {
+            getMerger(type);     // Mergers are created here, not concurrently
+            if (isDrill(type) || isAffectedByFeatures(type)) sequential.add(type);
+        }
+
+        var start = System.nanoTime();
+        try {
+            for (var type : types) {
+                if (!sequential.contains(type)) tasks.add(executor.submit(() -> { mergeLayer(type); return null; }));
+            }
+            tasks.add(executor.submit(() -> {
+                for (var type : sequential) mergeLayer(type);
+                return null;
+            }));
+            for (var task : tasks) task.get();
+        } catch (InterruptedException e) {
+            for (var task : tasks) task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new MergerException("Merge is interrupted");
+        } catch (ExecutionException e) {
+            for (var task : tasks) task.cancel(true);
+            if (e.getCause() instanceof MergerException m) throw m;
+            throw new MergerException(e.getCause().getMessage());
+        }
+        log.log(Level.INFO, "Merged {0} layers in {1} ms",
+                new Object[] { types.size(), (System.nanoTime() - start) / 1000000 });
+    }
+
+    // Each layer type is merged once, in the order of types,
+    // so drill layers go after the outline that features use
+    private EnumSet<Layer.Type> layerTypes() {
+        var types = EnumSet.noneOf(Layer.Type.class);
         for (var inst : batchInstances) {
             var iter = inst.getBatch().layers();
             while (iter.hasNext()) {
-                var l = iter.next();
-                mergeLayer(l.getLayerType());
+                var type = iter.next().getLayerType();
+                if (type != null) types.add(type);
             }
         }
+        return types;
+    }
+
+    /**
+     * Instances of one batch placed in a regular grid, the first one is at its corner.
+     */
+    private record Grid(BatchInstance first, SR repeat) {}
+
+    // Batches all instances of which make a full regular grid
+    private HashMap<Batch, Grid> grids() {
+        var instances = new HashMap<Batch, ArrayList<BatchInstance>>();
+        for (var inst : batchInstances) instances.computeIfAbsent(inst.getBatch(), b -> new ArrayList<>()).add(inst);
+        var grids = new HashMap<Batch, Grid>();
+        for (var e : instances.entrySet()) {
+            var grid = grid(e.getValue());
+            if (grid != null) grids.put(e.getKey(), grid);
+        }
+        return grids;
+    }
+
+    private static Grid grid(List<BatchInstance> instances) {
+        if (instances.size() < 2) return null;
+        var xs = new double[instances.size()];
+        var ys = new double[instances.size()];
+        for (var i = 0; i < instances.size(); i++) {
+            xs[i] = instances.get(i).getOffset().getX();
+            ys[i] = instances.get(i).getOffset().getY();
+        }
+        var columns = distinct(xs);
+        var rows = distinct(ys);
+        if (columns.length * rows.length != instances.size()) return null;
+        var xStep = step(columns);
+        var yStep = step(rows);
+        if (Double.isNaN(xStep) || Double.isNaN(yStep)) return null;
+
+        // Each cell of the grid is taken by one instance
+        var cells = new boolean[columns.length * rows.length];
+        BatchInstance first = null;
+        for (var inst : instances) {
+            var column = (columns.length > 1) ? (int) Math.round((inst.getOffset().getX() - columns[0]) / xStep) : 0;
+            var row = (rows.length > 1) ? (int) Math.round((inst.getOffset().getY() - rows[0]) / yStep) : 0;
+            if (cells[row * columns.length + column]) return null;
+            cells[row * columns.length + column] = true;
+            if ((column == 0) && (row == 0)) first = inst;
+        }
+        return new Grid(first, new SR(columns.length, rows.length, xStep, yStep));
+    }
+
+    // Sorted values without the ones equal within tolerance
+    private static double[] distinct(double[] values) {
+        var sorted = values.clone();
+        Arrays.sort(sorted);
+        var count = 0;
+        for (var v : sorted) {
+            if ((count == 0) || (v - sorted[count - 1] > gridTolerance)) sorted[count++] = v;
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    // Step of evenly spaced values, NaN if they are not
+    private static double step(double[] values) {
+        if (values.length < 2) return 0;
+        var step = (values[values.length - 1] - values[0]) / (values.length - 1);
+        for (var i = 1; i < values.length; i++) {
+            if (Math.abs(values[i] - values[0] - step * i) > gridTolerance) return Double.NaN;
+        }
+        return step;
+    }
+
+    private static boolean isDrill(Layer.Type type) {
+        return (type == Layer.Type.TopDrill) || (type == Layer.Type.BottomDrill);
+    }
+
+    private boolean isAffectedByFeatures(Layer.Type type) {
+        for (var f : features) {
+            if (f.affectedLayerTypes().contains(type)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Time of the last merge of the layer in nanoseconds.
+     */
+    public final long getMergeTime(Layer.Type type) {
+        synchronized (mergeCounts) {
+            return mergeTimes.getOrDefault(type, 0L);
+        }
+    }
+
+    /**
+     * How many times the layer has been merged, to check merge planning.
+     */
+    public final int getMergeCount(Layer.Type type) {
+        synchronized (mergeCounts) {
+            return mergeCounts.getOrDefault(type, 0);
+        }
     }
 
     public final Iterator<Feature> features() {
@@ -167,6 +358,36 @@ public class BatchMerger {
         batchInstances.remove(b);
     }
 
+    public final Snapshot snapshot() {
+        var instances = new ArrayList<BatchInstance>();
+        for (var inst : batchInstances) instances.add(new BatchInstance(inst.getId(), inst.getBatch(), inst.getOffset()));
+        var copies = new ArrayList<Feature>();
+        for (var f : features) copies.add(f.copy());
+        return new Snapshot(instances, copies);
+    }
+
+    /**
+     * Takes the layout of snapshot. Features already known by their ids and
+     * staying in place are kept, so the canvases recalculate only the moved ones.
+     * Moved features are replaced by their copies, which carry the exact place.
+     */
+    public final void apply(Snapshot snapshot) {
+        batchInstances.clear();
+        batchInstances.addAll(snapshot.instances());
+        var known = new HashMap<UUID, Feature>();
+        for (var f : features) known.put(f.getId(), f);
+        features.clear();
+        for (var f : snapshot.features()) {
+            var old = known.get(f.getId());
+            if ((old != null) && (old.getClass() == f.getClass()) &&
+                    old.getTopLeft().equals(f.getTopLeft()) && old.getBottomRight().equals(f.getBottomRight())) {
+                features.add(old);
+            } else {
+                features.add(f);
+            }
+        }
+    }
+
     public final Set<UUID> getBatchUUIDs() {
         return batches.keySet();
     }
@@ -184,24 +405,27 @@ public class BatchMerger {
     }
 
     public final void updateFeatures(Layer.Type type) throws MergerException {
-        var layer = getMerger(type, false).getLayer();
-        var canvas = new GerberCanvas();
+        var layer = getMerger(type).getLayer();
         var needUpdate = false;
         for (var f : features) {
             if (f.affectedLayerTypes().contains(type)) needUpdate = true;
-            canvas.addFeature(f);
         }
         if (!needUpdate) return;
 
+        // Canvas of the layer type is kept between merges, so it calculates only moved features
+        var canvas = canvases.computeIfAbsent(type, t -> new GerberCanvas());
+        canvas.setFeatures(features);
         canvas.draw(layer);         // Get merged Gerber and add it to Canvas
 
         // Put modified layer back to merged layer
         if (layer instanceof Excellon e) {
-            //getMerger(type, false).clean();
+            //getMerger(type).clean();
             canvas.writeToExcellon(e);
-        } else if (layer instanceof Gerber g) {
-            getMerger(type, false).clean();
-            canvas.writeToGerber(g);
+        } else if (layer instanceof Gerber) {
+            // A new layer to write the canvas to, placed segments are kept for the next merge
+            var merger = (GerberMerger) getMerger(type);
+            merger.begin();
+            canvas.writeToGerber(merger.getLayer());
         }
     }
 
@@ -210,5 +434,10 @@ public class BatchMerger {
         features.clear();
         batches.clear();
         batchInstances.clear();
+        canvases.clear();
+        synchronized (mergeCounts) {
+            mergeCounts.clear();
+            mergeTimes.clear();
+        }
     }
 }
@@ -1,28 +1,41 @@
 package ru.futurelink.gerber.panelizer.batch;
 
+import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.drl.ExcellonReader;
 import ru.futurelink.gerber.panelizer.exceptions.GerberException;
+import ru.futurelink.gerber.panelizer.gbr.GerberReader;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class BatchReader {
+    private final String filename;
     private final ZipInputStream stream;
 
     private final static Logger log = Logger.getLogger("BatchReader");
 
     public BatchReader(String filename) throws FileNotFoundException {
-        this(new FileInputStream(filename));
+        this.filename = filename;
+        this.stream = new ZipInputStream(new FileInputStream(filename));
     }
 
     public BatchReader(InputStream stream) {
+        this.filename = null;
         this.stream = new ZipInputStream(stream);
     }
+
     public final Batch read(String name) throws IOException, GerberException {
         var batch = new Batch(name);
         var element = stream.getNextEntry();
@@ -38,4 +51,73 @@ public class BatchReader {
         }
         return batch;
     }
+
+    /**
+     * Reads layers in parallel on the executor. Archive opened by file name is
+     * read by random access, a stream is unpacked first. Layers are added to
+     * the batch in the order of entries, as read(name) does.
+     */
+    public final Batch read(String name, ExecutorService executor) throws IOException, GerberException {
+        var tasks = new ArrayList<Future<Layer>>();
+        try {
+            if (filename != null) {
+                stream.close();
+                try (var zip = new ZipFile(filename)) {
+                    var entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        var element = entries.nextElement();
+                        if (isLayer(element.getName())) {
+                            tasks.add(executor.submit(() -> readLayer(element.getName(), zip.getInputStream(element))));
+                        }
+                    }
+                    return buildBatch(name, tasks);     // Layers must be read before the file is closed
+                }
+            } else {
+                var element = stream.getNextEntry();
+                while (element != null) {
+                    if (isLayer(element.getName())) {
+                        var entryName = element.getName();
+                        var data = stream.readAllBytes();
+                        tasks.add(executor.submit(() -> readLayer(entryName, new ByteArrayInputStream(data))));
+                    }
+                    element = stream.getNextEntry();
+                }
+                return buildBatch(name, tasks);
+            }
+        } catch (InterruptedException e) {
+            for (var task : tasks) task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch reading is interrupted");
+        } catch (ExecutionException e) {
+            for (var task : tasks) task.cancel(true);
+            if (e.getCause() instanceof IOException i) throw i;
+            if (e.getCause() instanceof GerberException g) throw g;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static boolean isLayer(String entryName) {
+        return entryName.endsWith(".gbr") || entryName.endsWith(".drl");
+    }
+
+    private static Layer readLayer(String entryName, InputStream in) throws IOException, GerberException {
+        try (in) {
+            if (entryName.endsWith(".gbr")) {
+                log.log(Level.INFO, "Loading Gerber from {0}", new Object[]{entryName});
+                return new GerberReader(in).read(entryName);
+            } else {
+                log.log(Level.INFO, "Loading Excellon from {0}", new Object[]{entryName});
+                return new ExcellonReader(in).read(entryName);
+            }
+        }
+    }
+
+    private static Batch buildBatch(String name, List<Future<Layer>> tasks)
+            throws InterruptedException, ExecutionException {
+        var batch = new Batch(name);
+        for (var task : tasks) {
+            batch.addLayer(task.get());
+        }
+        return batch;
+    }
 }
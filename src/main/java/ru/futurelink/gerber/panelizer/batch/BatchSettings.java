@@ -2,11 +2,20 @@ package ru.futurelink.gerber.panelizer.batch;
 
 import io.qt.core.QSettings;
 import lombok.Getter;
+import lombok.Setter;
 import ru.futurelink.gerber.panelizer.Layer;
 import java.util.HashMap;
+import java.util.zip.Deflater;
 
 public class BatchSettings {
     @Getter private final HashMap<Layer.Type, String> filePatterns;
+    @Getter @Setter private int compressionLevel;
+    @Getter @Setter private boolean optimizeDrillPath;
+    @Getter @Setter private boolean stepAndRepeat;
+
+    private final static String compressionLevelKey = "CompressionLevel";
+    private final static String optimizeDrillPathKey = "OptimizeDrillPath";
+    private final static String stepAndRepeatKey = "StepAndRepeat";
 
     private static BatchSettings instance;
 
@@ -28,6 +37,9 @@ public class BatchSettings {
         for (var t : filePatterns.keySet()) {
             s.setValue(Layer.layerTypeName(t), filePatterns.get(t));
         }
+        s.setValue(compressionLevelKey, compressionLevel);
+        s.setValue(optimizeDrillPathKey, optimizeDrillPath);
+        s.setValue(stepAndRepeatKey, stepAndRepeat);
         s.endGroup();
     }
 
@@ -44,6 +56,9 @@ public class BatchSettings {
         filePatterns.put(Layer.Type.EdgeCuts,       "%project%-B_Edge_Cuts");
         filePatterns.put(Layer.Type.TopDrill,       "%project%-PTH");
         filePatterns.put(Layer.Type.BottomDrill,    "%project%-NPTH");
+        compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        optimizeDrillPath = false;
+        stepAndRepeat = false;
 
         // Load saved settings
         var s = new QSettings();
@@ -52,6 +67,16 @@ public class BatchSettings {
             var val = s.value(Layer.layerTypeName(t));
             if (val != null) filePatterns.put(t, val.toString());
         }
+        var level = s.value(compressionLevelKey);
+        if (level != null) {
+            try {
+                compressionLevel = Integer.parseInt(level.toString());
+            } catch (NumberFormatException ignored) {}
+        }
+        var optimize = s.value(optimizeDrillPathKey);
+        if (optimize != null) optimizeDrillPath = Boolean.parseBoolean(optimize.toString());
+        var repeat = s.value(stepAndRepeatKey);
+        if (repeat != null) stepAndRepeat = Boolean.parseBoolean(repeat.toString());
         s.endGroup();
     }
 
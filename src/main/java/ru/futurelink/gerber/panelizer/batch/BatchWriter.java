@@ -1,6 +1,7 @@
 package ru.futurelink.gerber.panelizer.batch;
 
 import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.drl.DrillPathOptimizer;
 import ru.futurelink.gerber.panelizer.drl.Excellon;
 import ru.futurelink.gerber.panelizer.drl.ExcellonWriter;
 import ru.futurelink.gerber.panelizer.exceptions.GerberException;
@@ -8,15 +9,30 @@ import ru.futurelink.gerber.panelizer.gbr.Gerber;
 import ru.futurelink.gerber.panelizer.gbr.GerberWriter;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public class BatchWriter {
     private final OutputStream stream;
     private final Batch batch;
 
+    // Compressed entry, ready to be put into archive
+    private record Entry(String name, byte[] data, long crc, long size) {}
+
+    // Entries have fixed time (1980-01-01 00:00), so the same batch gives the same archive
+    private final static int dosTime = 0;
+    private final static int dosDate = (1 << 5) | 1;
+
     private final static Logger log = Logger.getLogger("BatchReader");
 
     public BatchWriter(File file, Batch batch) throws FileNotFoundException {
@@ -28,25 +44,183 @@ public class BatchWriter {
         this.batch = batch;
     }
 
+    /**
+     * Writes batch entries one by one, the archive is the same as the parallel writer gives.
+     */
     public void write(BatchSettings settings) throws IOException, GerberException {
         log.log(Level.INFO, "Writing batch...");
-        var zipStream = new ZipOutputStream(stream);
+        var entries = new ArrayList<Entry>();
+        for (var layer : sortedLayers()) {
+            var filename = settings.getFilename(layer.getLayerType(), batch.getName());
+            entries.add(compressLayer(filename, optimizeLayer(layer, settings), settings.getCompressionLevel()));
+        }
+        writeZip(entries);
+    }
+
+    /**
+     * Writes batch with layers rendered and compressed on the executor.
+     * Entries are put into archive in the order of layer types when they
+     * all are ready.
+     */
+    public void write(BatchSettings settings, ExecutorService executor) throws IOException, GerberException {
+        log.log(Level.INFO, "Writing batch in parallel...");
+        var level = settings.getCompressionLevel();
+        var tasks = new ArrayList<Future<Entry>>();
+        try {
+            for (var sorted : sortedLayers()) {
+                var filename = settings.getFilename(sorted.getLayerType(), batch.getName());
+                var layer = optimizeLayer(sorted, settings, executor);
+                tasks.add(executor.submit(() -> compressLayer(filename, layer, level)));
+            }
+            var entries = new ArrayList<Entry>();
+            for (var task : tasks) entries.add(task.get());
+            writeZip(entries);
+        } catch (InterruptedException e) {
+            for (var task : tasks) task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch writing is interrupted");
+        } catch (ExecutionException e) {
+            for (var task : tasks) task.cancel(true);
+            if (e.getCause() instanceof IOException i) throw i;
+            if (e.getCause() instanceof GerberException g) throw g;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private List<Layer> sortedLayers() {
+        var layers = new ArrayList<Layer>();
         var iter = batch.layers();
-        while (iter.hasNext()) {
-            var layer = iter.next();
+        while (iter.hasNext()) layers.add(iter.next());
+        layers.sort(Comparator.comparing(Layer::getLayerType, Comparator.nullsLast(Comparator.naturalOrder())));
+        return layers;
+    }
 
-            var filename = settings.getFilename(layer.getLayerType(), batch.getName());
-            log.log(Level.INFO, "Writing batch file {0}", new Object[]{filename});
+    /**
+     * Returns drill layer with holes reordered if it is enabled in settings.
+     */
+    private Layer optimizeLayer(Layer layer, BatchSettings settings) {
+        if (settings.isOptimizeDrillPath() && (layer instanceof Excellon e)) {
+            return new DrillPathOptimizer().optimize(e);
+        }
+        return layer;
+    }
 
-            zipStream.putNextEntry(new ZipEntry(filename));
-            if (layer instanceof Gerber g) {
-                new GerberWriter(zipStream).write(g);
-            } else if (layer instanceof Excellon e) {
-                new ExcellonWriter(zipStream).write(e);
+    private Layer optimizeLayer(Layer layer, BatchSettings settings, ExecutorService executor)
+            throws InterruptedException, ExecutionException {
+        if (settings.isOptimizeDrillPath() && (layer instanceof Excellon e)) {
+            return new DrillPathOptimizer().optimize(e, executor);
+        }
+        return layer;
+    }
+
+    private void writeLayer(OutputStream out, Layer layer) throws IOException, GerberException {
+        if (layer instanceof Gerber g) {
+            new GerberWriter(out).write(g);
+        } else if (layer instanceof Excellon e) {
+            new ExcellonWriter(out).write(e);
+        }
+    }
+
+    private Entry compressLayer(String filename, Layer layer, int level) throws IOException, GerberException {
+        log.log(Level.INFO, "Writing batch file {0}", new Object[]{filename});
+        var buffer = new ByteArrayOutputStream();
+        writeLayer(buffer, layer);
+        var data = buffer.toByteArray();
+
+        var crc = new CRC32();
+        crc.update(data);
+
+        var deflater = new Deflater(level, true);
+        var compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+        var chunk = new byte[64 * 1024];
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed.write(chunk, 0, deflater.deflate(chunk));
             }
-            zipStream.closeEntry();
+        } finally {
+            deflater.end();
         }
-        zipStream.finish();
+        return new Entry(filename, compressed.toByteArray(), crc.getValue(), data.length);
     }
 
+    /**
+     * Puts compressed entries into ZIP archive: local headers with data,
+     * then central directory.
+     */
+    private void writeZip(List<Entry> entries) throws IOException {
+        var out = new BufferedOutputStream(stream, 64 * 1024);
+        var offsets = new long[entries.size()];
+        long offset = 0;
+        for (var i = 0; i < entries.size(); i++) {
+            var e = entries.get(i);
+            checkSize(e.data().length);
+            checkSize(e.size());
+            var name = e.name().getBytes(StandardCharsets.UTF_8);
+            offsets[i] = offset;
+            writeInt(out, 0x04034b50);          // Local file header
+            writeEntryInfo(out, e, name);
+            writeShort(out, 0);                 // Extra field length
+            out.write(name);
+            out.write(e.data());
+            offset += 30 + name.length + e.data().length;
+        }
+
+        var directoryOffset = offset;
+        for (var i = 0; i < entries.size(); i++) {
+            var e = entries.get(i);
+            var name = e.name().getBytes(StandardCharsets.UTF_8);
+            writeInt(out, 0x02014b50);          // Central directory header
+            writeShort(out, 20);                // Version made by
+            writeEntryInfo(out, e, name);
+            writeShort(out, 0);                 // Extra field length
+            writeShort(out, 0);                 // Comment length
+            writeShort(out, 0);                 // Disk number
+            writeShort(out, 0);                 // Internal attributes
+            writeInt(out, 0);                   // External attributes
+            writeInt(out, (int) offsets[i]);
+            out.write(name);
+            offset += 46 + name.length;
+        }
+        checkSize(offset);
+        if (entries.size() > 0xffff) throw new IOException("Too many entries for ZIP archive");
+
+        writeInt(out, 0x06054b50);              // End of central directory
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, entries.size());
+        writeShort(out, entries.size());
+        writeInt(out, (int) (offset - directoryOffset));
+        writeInt(out, (int) directoryOffset);
+        writeShort(out, 0);                     // Comment length
+        out.flush();
+    }
+
+    private void writeEntryInfo(OutputStream out, Entry e, byte[] name) throws IOException {
+        var ascii = name.length == e.name().length();
+        writeShort(out, 20);                    // Version needed to extract
+        writeShort(out, ascii ? 0 : 0x800);     // UTF-8 names flag
+        writeShort(out, ZipEntry.DEFLATED);
+        writeShort(out, dosTime);
+        writeShort(out, dosDate);
+        writeInt(out, (int) e.crc());
+        writeInt(out, e.data().length);
+        writeInt(out, (int) e.size());
+        writeShort(out, name.length);
+    }
+
+    private static void checkSize(long size) throws IOException {
+        if (size >= 0xffffffffL) throw new IOException("Batch is too large for ZIP archive");
+    }
+
+    private static void writeShort(OutputStream out, int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        writeShort(out, v & 0xffff);
+        writeShort(out, (v >>> 16) & 0xffff);
+    }
 }
@@ -7,6 +7,7 @@ import java.util.ArrayList;
 public class Aperture {
     @Getter private final String macro;
     @Getter private final ArrayList<Double> measures;
+    @Getter private final double[] values;
 
     public Aperture(String macro, String measures) {
         this.macro = macro;
@@ -14,5 +15,6 @@ public class Aperture {
         for (var m : measures.split("X")) {
             this.measures.add(Double.parseDouble(m.trim()));
         }
+        this.values = this.measures.stream().mapToDouble(Double::doubleValue).toArray();
     }
 }
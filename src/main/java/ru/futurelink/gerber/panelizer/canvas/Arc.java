@@ -2,6 +2,8 @@ package ru.futurelink.gerber.panelizer.canvas;
 
 import lombok.Getter;
 
+import java.util.Objects;
+
 public class Arc extends Geometry {
     @Getter final private Double i;
     @Getter final private Double j;
@@ -14,6 +16,18 @@ public class Arc extends Geometry {
         this.quadrantMode = quadrantMode;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o)) return false;
+        var a = (Arc) o;
+        return Objects.equals(i, a.i) && Objects.equals(j, a.j) && (quadrantMode == a.quadrantMode);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), i, j, quadrantMode);
+    }
+
     @Override
     public String toString() {
         return String.format("Arc to (%s) with I=%f, J=%f aperture %d", getStart(), i, j, getAperture());
@@ -2,6 +2,8 @@ package ru.futurelink.gerber.panelizer.canvas;
 
 import lombok.Getter;
 
+import java.util.Objects;
+
 public abstract class Geometry extends Range {
     public enum Interpolation { LINEAR, CW, CCW }
     public enum QuadrantMode { SINGLE, MULTI }
@@ -13,4 +15,22 @@ public abstract class Geometry extends Range {
         this.aperture = aperture;
         this.interpolation = interpolation;
     }
+
+    /**
+     * Geometry objects are equal when they draw the same, so features
+     * calculated for an object apply to the same object drawn again.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if ((o == null) || (getClass() != o.getClass())) return false;
+        var g = (Geometry) o;
+        return (aperture == g.aperture) && (interpolation == g.interpolation) &&
+                Objects.equals(getStart(), g.getStart()) && Objects.equals(getEnd(), g.getEnd());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getStart(), getEnd(), aperture, interpolation);
+    }
 }
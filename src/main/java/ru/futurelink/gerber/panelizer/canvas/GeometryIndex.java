@@ -0,0 +1,140 @@
+package ru.futurelink.gerber.panelizer.canvas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid over bounding boxes of geometry objects. Each object is put
+ * into all cells its bounding box overlaps, so a query looks only at the
+ * objects around the given area. Arc bounds are the bounds of its whole circle.
+ */
+public class GeometryIndex {
+    private final static int maxCells = 1 << 20;
+
+    private final List<Geometry> geometry;
+    private final double[] bounds;        // minX, minY, maxX, maxY of each object
+    private final double minX, minY;
+    private final double cellSize;
+    private final int cols, rows;
+    private final int[] cellStart;
+    private final int[] items;
+    private final int[] stamps;
+    private int stamp;
+
+    public GeometryIndex(List<Geometry> geometry) {
+        this.geometry = geometry;
+        var n = geometry.size();
+        bounds = new double[n * 4];
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        for (var i = 0; i < n; i++) {
+            setBounds(i, geometry.get(i));
+            x0 = Math.min(x0, bounds[i * 4]);
+            y0 = Math.min(y0, bounds[i * 4 + 1]);
+            x1 = Math.max(x1, bounds[i * 4 + 2]);
+            y1 = Math.max(y1, bounds[i * 4 + 3]);
+        }
+        if (n == 0) {
+            x0 = y0 = x1 = y1 = 0;
+        }
+        minX = x0;
+        minY = y0;
+        var width = Math.max(x1 - x0, 1e-6);
+        var height = Math.max(y1 - y0, 1e-6);
+        // About one object per cell, but not too many cells for few long objects
+        cellSize = Math.max(Math.sqrt(width * height / Math.max(n, 1)),
+                Math.max(Math.sqrt(width * height / maxCells), Math.max(width, height) / maxCells));
+        cols = (int) (width / cellSize) + 1;
+        rows = (int) (height / cellSize) + 1;
+
+        // Count objects in cells, then fill cells ranges
+        cellStart = new int[cols * rows + 1];
+        for (var i = 0; i < n; i++) {
+            for (var r = row(bounds[i * 4 + 1]); r <= row(bounds[i * 4 + 3]); r++) {
+                for (var c = col(bounds[i * 4]); c <= col(bounds[i * 4 + 2]); c++) {
+                    cellStart[r * cols + c + 1]++;
+                }
+            }
+        }
+        for (var c = 0; c < cols * rows; c++) cellStart[c + 1] += cellStart[c];
+        items = new int[cellStart[cols * rows]];
+        var fill = Arrays.copyOf(cellStart, cols * rows);
+        for (var i = 0; i < n; i++) {
+            for (var r = row(bounds[i * 4 + 1]); r <= row(bounds[i * 4 + 3]); r++) {
+                for (var c = col(bounds[i * 4]); c <= col(bounds[i * 4 + 2]); c++) {
+                    items[fill[r * cols + c]++] = i;
+                }
+            }
+        }
+        stamps = new int[n];
+    }
+
+    private void setBounds(int index, Geometry g) {
+        var s = g.getStart();
+        var e = g.getEnd();
+        var x0 = Math.min(s.getX(), e.getX());
+        var y0 = Math.min(s.getY(), e.getY());
+        var x1 = Math.max(s.getX(), e.getX());
+        var y1 = Math.max(s.getY(), e.getY());
+        if ((g instanceof Arc a) && (a.getI() != null) && (a.getJ() != null)) {
+            // Center is given by offset from the start point
+            var cx = s.getX() + a.getI();
+            var cy = s.getY() + a.getJ();
+            var r = Math.sqrt(a.getI() * a.getI() + a.getJ() * a.getJ());
+            x0 = Math.min(x0, cx - r);
+            y0 = Math.min(y0, cy - r);
+            x1 = Math.max(x1, cx + r);
+            y1 = Math.max(y1, cy + r);
+        }
+        bounds[index * 4] = x0;
+        bounds[index * 4 + 1] = y0;
+        bounds[index * 4 + 2] = x1;
+        bounds[index * 4 + 3] = y1;
+    }
+
+    private int col(double x) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((x - minX) / cellSize)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - minY) / cellSize)));
+    }
+
+    /**
+     * Returns objects which bounds overlap the area between two corners,
+     * in the order of the indexed list.
+     */
+    public final List<Geometry> query(Point corner1, Point corner2) {
+        return query(Math.min(corner1.getX(), corner2.getX()), Math.min(corner1.getY(), corner2.getY()),
+                Math.max(corner1.getX(), corner2.getX()), Math.max(corner1.getY(), corner2.getY()));
+    }
+
+    public final List<Geometry> query(double x0, double y0, double x1, double y1) {
+        var result = new ArrayList<Geometry>();
+        if (stamps.length == 0) return result;
+        if (++stamp == 0) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        var found = new int[16];
+        var count = 0;
+        for (var r = row(y0); r <= row(y1); r++) {
+            for (var c = col(x0); c <= col(x1); c++) {
+                var cell = r * cols + c;
+                for (var p = cellStart[cell]; p < cellStart[cell + 1]; p++) {
+                    var i = items[p];
+                    if (stamps[i] == stamp) continue;
+                    stamps[i] = stamp;
+                    if ((bounds[i * 4] <= x1) && (bounds[i * 4 + 2] >= x0) &&
+                            (bounds[i * 4 + 1] <= y1) && (bounds[i * 4 + 3] >= y0)) {
+                        if (count == found.length) found = Arrays.copyOf(found, count * 2);
+                        found[count++] = i;
+                    }
+                }
+            }
+        }
+        Arrays.sort(found, 0, count);
+        for (var i = 0; i < count; i++) result.add(geometry.get(found[i]));
+        return result;
+    }
+}
@@ -1,30 +1,38 @@
 package ru.futurelink.gerber.panelizer.canvas;
 
 import lombok.Getter;
-import ru.futurelink.gerber.panelizer.gui.Utils;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AM;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Aperture macro with its expressions compiled once, evaluated for parameters of each aperture.
+ */
 public class Macro {
+    // Compiled macros by macro body, the same body in several files or layers is compiled once.
+    // Kept until the project is closed, see clearCompiled()
+    private final static ConcurrentHashMap<String, Macro> compiled = new ConcurrentHashMap<>();
 
     public final static class OperationResult {
         @Getter private final Operation.Type type;
         @Getter private final Boolean exposure;
-        private final ArrayList<Double> values;
+        private final double[] values;
 
-        OperationResult(Operation.Type type, boolean exposure) {
+        OperationResult(Operation.Type type, boolean exposure, int size) {
             this.type = type;
             this.exposure = exposure;
-            this.values = new ArrayList<>();
+            this.values = new double[size];
         }
 
         public double getValue(int index) {
-            return values.get(index);
+            return values[index];
         }
 
         @Override
         public String toString() {
-            return String.format("Result: %s, %s", type, values);
+            return String.format("Result: %s, %s", type, Arrays.toString(values));
         }
     }
 
@@ -33,32 +41,38 @@ public class Macro {
         private final Type type;
         private final Boolean exposure;
         private final ArrayList<String> params;
+        private final ArrayList<MacroExpression> expressions;
 
         private Operation(Type type, boolean exposure) {
             this.type = type;
             this.exposure = exposure;
             this.params = new ArrayList<>();
+            this.expressions = new ArrayList<>();
         }
 
         private void addParameter(String p) {
             params.add(p);
+            expressions.add(MacroExpression.compile(p));
         }
 
         public OperationResult eval(final Double[] operationParams) {
-            var res = new OperationResult(type, exposure);
-            for (var p : params) {
-                res.values.add(Utils.eval(substVars(p, operationParams)));
+            return eval(unbox(operationParams));
+        }
+
+        public OperationResult eval(final double[] operationParams) {
+            var res = new OperationResult(type, exposure, expressions.size());
+            for (var i = 0; i < expressions.size(); i++) {
+                res.values[i] = expressions.get(i).eval(operationParams);
             }
             return res;
         }
 
-        private String substVars(final String p, Double[] params) {
-            var r = p;
-            for (var i = 0; i < params.length; i++) r = r.replaceAll("\\$" + (i+1), String.format("%f", params[i]));
-            return r;
+        private int maxVariable() {
+            var max = 0;
+            for (var e : expressions) max = Math.max(max, e.maxVariable());
+            return max;
         }
 
-
         public static Operation fromString(String paramsString) {
             if (!paramsString.startsWith("0")) {
                 var params = paramsString.split(",");
@@ -84,22 +98,79 @@ public class Macro {
         }
     }
 
+    /**
+     * Variable definition block $n=expression, it changes variable for the next blocks.
+     */
+    private record Assignment(int index, MacroExpression expression) {}
+
     @Getter ArrayList<Operation> operations;
+    // Operations and assignments in the order of blocks
+    private final ArrayList<Object> blocks;
+    private int variables;
 
     public Macro(ArrayList<String> params) {
         operations = new ArrayList<>();
+        blocks = new ArrayList<>();
         params.forEach(p -> {
-            var o = Operation.fromString(p);
-            if (o != null) operations.add(o);
+            var block = p.trim();
+            if (block.startsWith("$") && block.contains("=")) {
+                var eq = block.indexOf('=');
+                var index = Integer.parseInt(block.substring(1, eq).trim()) - 1;
+                var expression = MacroExpression.compile(block.substring(eq + 1));
+                blocks.add(new Assignment(index, expression));
+                variables = Math.max(variables, Math.max(index + 1, expression.maxVariable()));
+            } else {
+                var o = Operation.fromString(block);
+                if (o != null) {
+                    operations.add(o);
+                    blocks.add(o);
+                    variables = Math.max(variables, o.maxVariable());
+                }
+            }
+        });
+    }
+
+    /**
+     * Compiled macro of the definition, cached by its body.
+     */
+    public static Macro compile(AM am) {
+        return compiled.computeIfAbsent(am.getBody(), body -> {
+            var t = new ArrayList<String>();
+            am.blocks().forEachRemaining(t::add);
+            return new Macro(t);
         });
     }
 
+    /**
+     * Forgets compiled macros, called when the project is closed or replaced.
+     */
+    public static void clearCompiled() {
+        compiled.clear();
+    }
+
     public ArrayList<OperationResult> eval(Double[] params) {
-        var res = new ArrayList<OperationResult>();
-        for (var o : operations) {
-            res.add(o.eval(params));
+        return eval(unbox(params));
+    }
+
+    public ArrayList<OperationResult> eval(double[] params) {
+        var vars = params;
+        var res = new ArrayList<OperationResult>(operations.size());
+        for (var b : blocks) {
+            if (b instanceof Assignment a) {
+                // Parameters of the aperture are kept as they are
+                if (vars == params) vars = Arrays.copyOf(params, Math.max(params.length, variables));
+                vars[a.index()] = a.expression().eval(vars);
+            } else {
+                res.add(((Operation) b).eval(vars));
+            }
         }
         return res;
     }
 
+    private static double[] unbox(Double[] params) {
+        var values = new double[params.length];
+        for (var i = 0; i < params.length; i++) values[i] = params[i];
+        return values;
+    }
+
 }
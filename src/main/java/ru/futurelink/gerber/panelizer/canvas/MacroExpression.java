@@ -0,0 +1,188 @@
+package ru.futurelink.gerber.panelizer.canvas;
+
+/**
+ * Arithmetic expression of an aperture macro parsed once into a tree,
+ * evaluated against variable values without any string handling.
+ * Operators are +, -, x, / and ^, variables are $1, $2, ...
+ */
+public abstract class MacroExpression {
+
+    /**
+     * Evaluates expression, vars[n-1] is the value of $n, missing variables are 0.
+     */
+    public abstract double eval(double[] vars);
+
+    /**
+     * Highest variable number used in expression.
+     */
+    public abstract int maxVariable();
+
+    private static final class Value extends MacroExpression {
+        private final double value;
+
+        Value(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double eval(double[] vars) {
+            return value;
+        }
+
+        @Override
+        public int maxVariable() {
+            return 0;
+        }
+    }
+
+    private static final class Variable extends MacroExpression {
+        private final int index;
+
+        Variable(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public double eval(double[] vars) {
+            return (index < vars.length) ? vars[index] : 0;
+        }
+
+        @Override
+        public int maxVariable() {
+            return index + 1;
+        }
+    }
+
+    private static final class Negate extends MacroExpression {
+        private final MacroExpression operand;
+
+        Negate(MacroExpression operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public double eval(double[] vars) {
+            return -operand.eval(vars);
+        }
+
+        @Override
+        public int maxVariable() {
+            return operand.maxVariable();
+        }
+    }
+
+    private static final class Binary extends MacroExpression {
+        private final char operator;
+        private final MacroExpression left, right;
+
+        Binary(char operator, MacroExpression left, MacroExpression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(double[] vars) {
+            var l = left.eval(vars);
+            var r = right.eval(vars);
+            return switch (operator) {
+                case '+' -> l + r;
+                case '-' -> l - r;
+                case 'x' -> l * r;
+                case '/' -> l / r;
+                default -> Math.pow(l, r);
+            };
+        }
+
+        @Override
+        public int maxVariable() {
+            return Math.max(left.maxVariable(), right.maxVariable());
+        }
+    }
+
+    public static MacroExpression compile(final String str) {
+        return new Object() {
+            int pos = -1, ch;
+
+            void nextChar() {
+                ch = (++pos < str.length()) ? str.charAt(pos) : -1;
+            }
+
+            boolean eat(int charToEat) {
+                while (ch == ' ') nextChar();
+                if (ch == charToEat) {
+                    nextChar();
+                    return true;
+                }
+                return false;
+            }
+
+            MacroExpression parse() {
+                nextChar();
+                var x = parseExpression();
+                while (ch == ' ') nextChar();
+                if (pos < str.length()) throw new RuntimeException("Unexpected: " + (char)ch);
+                return x;
+            }
+
+            // Grammar is the same as in Utils.eval with variables:
+            // factor = `+` factor | `-` factor | `(` expression `)` | number | `$` integer
+            //        | factor `^` factor
+            MacroExpression parseExpression() {
+                var x = parseTerm();
+                for (;;) {
+                    if      (eat('+')) x = binary('+', x, parseTerm());
+                    else if (eat('-')) x = binary('-', x, parseTerm());
+                    else return x;
+                }
+            }
+
+            MacroExpression parseTerm() {
+                var x = parseFactor();
+                for (;;) {
+                    if      (eat('x') || eat('X')) x = binary('x', x, parseFactor());
+                    else if (eat('/')) x = binary('/', x, parseFactor());
+                    else return x;
+                }
+            }
+
+            MacroExpression parseFactor() {
+                if (eat('+')) return parseFactor();
+                if (eat('-')) {
+                    var operand = parseFactor();
+                    return (operand instanceof Value v) ? new Value(-v.value) : new Negate(operand);
+                }
+
+                MacroExpression x;
+                int startPos = this.pos;
+                if (eat('(')) {
+                    x = parseExpression();
+                    if (!eat(')')) throw new RuntimeException("Missing ')'");
+                } else if ((ch >= '0' && ch <= '9') || ch == '.') {
+                    while ((ch >= '0' && ch <= '9') || ch == '.') nextChar();
+                    x = new Value(Double.parseDouble(str.substring(startPos, this.pos)));
+                } else if (ch == '$') {
+                    nextChar();
+                    var start = this.pos;
+                    while (ch >= '0' && ch <= '9') nextChar();
+                    if (start == this.pos) throw new RuntimeException("Missing variable number");
+                    var index = Integer.parseInt(str.substring(start, this.pos));
+                    if (index < 1) throw new RuntimeException("Wrong variable: $" + index);
+                    x = new Variable(index - 1);
+                } else {
+                    throw new RuntimeException("Unexpected: " + (char)ch);
+                }
+
+                if (eat('^')) x = binary('^', x, parseFactor());
+
+                return x;
+            }
+
+            // Constant parts are calculated right away
+            MacroExpression binary(char operator, MacroExpression left, MacroExpression right) {
+                var x = new Binary(operator, left, right);
+                return ((left instanceof Value) && (right instanceof Value)) ? new Value(x.eval(new double[0])) : x;
+            }
+        }.parse();
+    }
+}
@@ -35,6 +35,19 @@ public class Point {
         return Math.sqrt(Math.pow(a.getX() - b.getX(), 2) + Math.pow(a.getY() - b.getY(), 2));
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if ((o == null) || (getClass() != o.getClass())) return false;
+        var p = (Point) o;
+        return (Double.compare(x, p.x) == 0) && (Double.compare(y, p.y) == 0);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Double.hashCode(x) + Double.hashCode(y);
+    }
+
     @Override
     public String toString() {
         return String.format("%f,%f", x, y);
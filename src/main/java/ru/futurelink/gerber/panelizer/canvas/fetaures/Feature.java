@@ -15,6 +15,7 @@ abstract public class Feature {
     @Getter private final HashMap<Geometry, List<Range>> pierces;
     @Getter protected Point topLeft;
     @Getter protected Point bottomRight;
+    @Getter private long revision;      // Changed on every move, so calculated data is known to be outdated
 
     public Feature(UUID id, Point topLeft, Point bottomRight) {
         this.id = id;
@@ -30,6 +31,12 @@ abstract public class Feature {
         affectedGeometry.add(g);
     }
 
+    // Drops geometry calculated before, so it is not added twice
+    protected void cleanAffected() {
+        affectedGeometry.clear();
+        pierces.clear();
+    }
+
     protected void addPiercing(Geometry g, Range r) {
         if (!pierces.containsKey(g)) pierces.put(g, new ArrayList<>());
         pierces.get(g).add(r);
@@ -37,12 +44,20 @@ abstract public class Feature {
 
     public void moveOffset(double x, double y) {
         this.topLeft = new Point(topLeft.getX() + x, topLeft.getY() + y);
-        this.bottomRight = new Point(bottomRight.getX() + x, bottomRight.getY() + x);
+        this.bottomRight = new Point(bottomRight.getX() + x, bottomRight.getY() + y);
+        revision++;
     }
 
+    /**
+     * New feature with the same id and place, without calculated data.
+     */
+    abstract public Feature copy();
     abstract public void clean();
     abstract public boolean affects(Geometry g);
     abstract public void cleanAffectedGeometry(Layer.Type type);
+    /**
+     * Canvas calls it only for geometry which bounds overlap the feature bounds.
+     */
     abstract public void calculateAffectedGeometry(Layer.Type type, Geometry g);
     abstract public Set<Layer.Type> affectedLayerTypes();
     abstract public boolean isValid();
@@ -24,6 +24,11 @@ public class MouseBites extends RoundFeature {
         super(id, center, radius);
     }
 
+    @Override
+    public MouseBites copy() {
+        return new MouseBites(getId(), getCenter(), getRadius());
+    }
+
     @Override
     public final boolean isValid() {
         // Mouse bites feature must have at least 2 intersections, which means
@@ -43,7 +48,7 @@ public class MouseBites extends RoundFeature {
         if (isValid()) {
             // As points are sorted counter-clockwise, then
             // if next point is on the same line - then start with next point
-            int start = (points.get(0).geometry == points.get(1).geometry) ? 1 : 0;
+            int start = points.get(0).geometry.equals(points.get(1).geometry) ? 1 : 0;
             for (var n = start; n < points.size(); n += 2) {
                 var p1 = points.get(n).point;
                 var p2 = points.get(((n+1) >= points.size()) ? 0 : n+1).point;
@@ -82,6 +87,7 @@ public class MouseBites extends RoundFeature {
     public final void clean() {
         intersections.clear();
         points.clear();
+        cleanAffected();
     }
 
     @Override
@@ -94,6 +100,7 @@ public class MouseBites extends RoundFeature {
         if (type == Layer.Type.EdgeCuts) {
             intersections.clear();
             points.clear();
+            cleanAffected();
         }
     }
 
@@ -0,0 +1,256 @@
+package ru.futurelink.gerber.panelizer.drl;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Orders holes of each tool to shorten the drill head travel: a nearest
+ * neighbour path found with a grid of holes, improved by 2-opt moves
+ * within a window of the path. Routed holes are ordered by their start point.
+ */
+public class DrillPathOptimizer {
+    private final static int window = 50;
+    private final static int maxPasses = 8;
+
+    @Getter private double travelBefore;
+    @Getter private double travelAfter;
+
+    private final static Logger log = Logger.getLogger("DrillPathOptimizer");
+
+    /**
+     * Returns a copy of the layer with holes reordered, tools are kept in their order.
+     */
+    public final Excellon optimize(Excellon source) {
+        var tools = tools(source);
+        var orders = new ArrayList<int[]>();
+        for (var tool : tools) orders.add(order(tool));
+        return build(source, tools, orders);
+    }
+
+    /**
+     * Same as optimize(source), tools are ordered in parallel on the executor.
+     */
+    public final Excellon optimize(Excellon source, ExecutorService executor)
+            throws InterruptedException, ExecutionException {
+        var tools = tools(source);
+        var tasks = new ArrayList<Future<int[]>>();
+        try {
+            for (var tool : tools) tasks.add(executor.submit(() -> order(tool)));
+            var orders = new ArrayList<int[]>();
+            for (var task : tasks) orders.add(task.get());
+            return build(source, tools, orders);
+        } finally {
+            for (var task : tasks) task.cancel(true);
+        }
+    }
+
+    private static ArrayList<Excellon.Tool> tools(Excellon source) {
+        var tools = new ArrayList<Excellon.Tool>();
+        var iter = source.tools();
+        while (iter.hasNext()) tools.add(iter.next());
+        return tools;
+    }
+
+    private Excellon build(Excellon source, ArrayList<Excellon.Tool> tools, ArrayList<int[]> orders) {
+        var result = new Excellon(source.getName());
+        travelBefore = 0;
+        travelAfter = 0;
+        for (var t = 0; t < tools.size(); t++) {
+            var tool = tools.get(t);
+            var order = orders.get(t);
+            var before = travel(tool, null);
+            var after = travel(tool, order);
+            log.log(Level.FINE, "Tool {0}: {1} holes, travel {2} -> {3}",
+                    new Object[] { tool.getDiameter(), tool.size(), before, after });
+            travelBefore += before;
+            travelAfter += after;
+            for (var index : order) {
+                var routed = tool.getRouted(index);
+                if (routed != null) {
+                    result.addHole(routed);
+                } else {
+                    result.addHole(tool.getX(index), tool.getY(index), tool.getDiameter());
+                }
+            }
+        }
+        log.log(Level.INFO, "Drill path of {0} optimized, travel {1} -> {2}",
+                new Object[] { source.getName(), travelBefore, travelAfter });
+        return result;
+    }
+
+    /**
+     * Length of the path through holes of the tool in the given order, or in stored order if it is null.
+     */
+    public static double travel(Excellon.Tool tool, int[] order) {
+        var length = 0.0;
+        for (var i = 1; i < tool.size(); i++) {
+            var a = (order != null) ? order[i - 1] : i - 1;
+            var b = (order != null) ? order[i] : i;
+            var dx = tool.getX(b) - tool.getX(a);
+            var dy = tool.getY(b) - tool.getY(a);
+            length += Math.sqrt(dx * dx + dy * dy);
+        }
+        return length;
+    }
+
+    /**
+     * Finds the order of holes of one tool.
+     */
+    static int[] order(Excellon.Tool tool) {
+        var n = tool.size();
+        var xs = new double[n];
+        var ys = new double[n];
+        for (var i = 0; i < n; i++) {
+            xs[i] = tool.getX(i);
+            ys[i] = tool.getY(i);
+        }
+        var order = nearestNeighbour(xs, ys);
+        twoOpt(order, xs, ys);
+        return order;
+    }
+
+    /**
+     * Builds the path from the hole nearest to origin, going to the nearest
+     * hole not visited yet. Holes are sorted into grid cells of about two
+     * holes each, and the search goes by rings of cells around the current one.
+     */
+    private static int[] nearestNeighbour(double[] xs, double[] ys) {
+        var n = xs.length;
+        var order = new int[n];
+        if (n == 0) return order;
+
+        double minX = xs[0], minY = ys[0], maxX = xs[0], maxY = ys[0];
+        for (var i = 1; i < n; i++) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        var width = Math.max(maxX - minX, 1e-6);
+        var height = Math.max(maxY - minY, 1e-6);
+        var cellSize = Math.max(Math.sqrt(width * height * 2 / n), Math.max(width, height) / 4096);
+        var cols = (int) (width / cellSize) + 1;
+        var rows = (int) (height / cellSize) + 1;
+
+        // Holes sorted by cells, each cell keeps its remaining holes at the start of its range
+        var cellOf = new int[n];
+        var cellStart = new int[cols * rows + 1];
+        for (var i = 0; i < n; i++) {
+            var col = (int) ((xs[i] - minX) / cellSize);
+            var row = (int) ((ys[i] - minY) / cellSize);
+            cellOf[i] = row * cols + col;
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (var c = 0; c < cols * rows; c++) cellStart[c + 1] += cellStart[c];
+        var cellCount = new int[cols * rows];
+        var items = new int[n];
+        var where = new int[n];
+        for (var i = 0; i < n; i++) {
+            var c = cellOf[i];
+            where[i] = cellStart[c] + cellCount[c]++;
+            items[where[i]] = i;
+        }
+
+        var current = 0;
+        for (var i = 1; i < n; i++) {
+            if (xs[i] * xs[i] + ys[i] * ys[i] < xs[current] * xs[current] + ys[current] * ys[current]) current = i;
+        }
+        for (var k = 0; k < n; k++) {
+            order[k] = current;
+
+            // Remove current hole from its cell
+            var c = cellOf[current];
+            var last = cellStart[c] + --cellCount[c];
+            var moved = items[last];
+            items[where[current]] = moved;
+            where[moved] = where[current];
+            items[last] = current;
+            where[current] = last;
+            if (k == n - 1) break;
+
+            var col = (int) ((xs[current] - minX) / cellSize);
+            var row = (int) ((ys[current] - minY) / cellSize);
+            var best = -1;
+            var bestDist = Double.MAX_VALUE;
+            var maxRing = Math.max(cols, rows);
+            for (var r = 0; r <= maxRing; r++) {
+                for (var cy = row - r; cy <= row + r; cy++) {
+                    if ((cy < 0) || (cy >= rows)) continue;
+                    var edge = (cy == row - r) || (cy == row + r);
+                    for (var cx = col - r; cx <= col + r; cx += (edge || r == 0) ? 1 : 2 * r) {
+                        if ((cx < 0) || (cx >= cols)) continue;
+                        var cell = cy * cols + cx;
+                        for (var p = cellStart[cell]; p < cellStart[cell] + cellCount[cell]; p++) {
+                            var h = items[p];
+                            var dx = xs[h] - xs[current];
+                            var dy = ys[h] - ys[current];
+                            var dist = dx * dx + dy * dy;
+                            if (dist < bestDist) {
+                                bestDist = dist;
+                                best = h;
+                            }
+                        }
+                    }
+                }
+                // Holes in further rings are at least r cells away
+                if ((best >= 0) && (bestDist <= (r * cellSize) * (r * cellSize))) break;
+            }
+            current = best;
+        }
+        return order;
+    }
+
+    /**
+     * Improves the open path by reversing its parts while it gets shorter.
+     * Only edges up to the window apart are tried, so a pass is linear.
+     */
+    private static void twoOpt(int[] order, double[] xs, double[] ys) {
+        var n = order.length;
+        for (var pass = 0; pass < maxPasses; pass++) {
+            var improved = false;
+            for (var i = 0; i < n - 2; i++) {
+                var a = order[i];
+                var b = order[i + 1];
+                var ab = dist(xs, ys, a, b);
+                for (var j = i + 2; (j < n) && (j <= i + window); j++) {
+                    var c = order[j];
+                    double delta;
+                    if (j == n - 1) {
+                        // Path end: edge (a, b) is replaced by (a, c)
+                        delta = dist(xs, ys, a, c) - ab;
+                    } else {
+                        var d = order[j + 1];
+                        delta = dist(xs, ys, a, c) + dist(xs, ys, b, d) - ab - dist(xs, ys, c, d);
+                    }
+                    if (delta < -1e-9) {
+                        reverse(order, i + 1, j);
+                        b = order[i + 1];
+                        ab = dist(xs, ys, a, b);
+                        improved = true;
+                    }
+                }
+            }
+            if (!improved) break;
+        }
+    }
+
+    private static double dist(double[] xs, double[] ys, int a, int b) {
+        var dx = xs[b] - xs[a];
+        var dy = ys[b] - ys[a];
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static void reverse(int[] order, int from, int to) {
+        while (from < to) {
+            var t = order[from];
+            order[from++] = order[to];
+            order[to--] = t;
+        }
+    }
+}
@@ -1,33 +1,171 @@
 package ru.futurelink.gerber.panelizer.drl;
 
+import lombok.Getter;
 import ru.futurelink.gerber.panelizer.Layer;
 import ru.futurelink.gerber.panelizer.drl.holes.Hole;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRound;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRouted;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.logging.Logger;
 
+/**
+ * Drill layer. Holes are kept grouped by tool diameter in the order tools
+ * appear, so holes() iterates them tool by tool.
+ */
 public class Excellon extends Layer {
-    private final ArrayList<Hole> holes;
+    private final LinkedHashMap<Double, Tool> tools;
 
     private final static Logger log = Logger.getLogger("Excellon");
 
+    /**
+     * Holes of one diameter. Round holes are stored as coordinates only,
+     * routed holes are kept as objects because their points can be added later.
+     */
+    public final static class Tool {
+        @Getter private final Double diameter;
+        private double[] xs;
+        private double[] ys;
+        private int[] routes;       // index in routed list, -1 for a round hole
+        private final ArrayList<HoleRouted> routed;
+        private int size;
+
+        private Tool(Double diameter) {
+            this.diameter = diameter;
+            this.xs = new double[16];
+            this.ys = new double[16];
+            this.routes = new int[16];
+            this.routed = new ArrayList<>();
+        }
+
+        private void add(double x, double y, HoleRouted route) {
+            if (size == xs.length) {
+                var capacity = size * 2;
+                xs = Arrays.copyOf(xs, capacity);
+                ys = Arrays.copyOf(ys, capacity);
+                routes = Arrays.copyOf(routes, capacity);
+            }
+            xs[size] = x;
+            ys[size] = y;
+            if (route != null) {
+                routes[size] = routed.size();
+                routed.add(route);
+            } else {
+                routes[size] = -1;
+            }
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public double getX(int index) {
+            return xs[index];
+        }
+
+        public double getY(int index) {
+            return ys[index];
+        }
+
+        /**
+         * Returns routed hole at the index or null if the hole is round.
+         */
+        public HoleRouted getRouted(int index) {
+            return (routes[index] >= 0) ? routed.get(routes[index]) : null;
+        }
+
+        public Hole get(int index) {
+            var route = getRouted(index);
+            return (route != null) ? route : new HoleRound(xs[index], ys[index], diameter);
+        }
+    }
+
     public Excellon(String name) {
         super(name);
-        this.holes = new ArrayList<>();
+        this.tools = new LinkedHashMap<>();
     }
 
     public final void addHole(Hole h) {
-        holes.add(h);
+        if (h instanceof HoleRouted r) {
+            tool(h.getDiameter()).add(h.getX(), h.getY(), r);
+        } else {
+            tool(h.getDiameter()).add(h.getX(), h.getY(), null);
+        }
+    }
+
+    /**
+     * Adds round hole without having its object.
+     */
+    public final void addHole(double x, double y, Double diameter) {
+        tool(diameter).add(x, y, null);
+    }
+
+    private Tool tool(Double diameter) {
+        var tool = tools.get(diameter);
+        if (tool == null) {
+            tool = new Tool(diameter);
+            tools.put(diameter, tool);
+        }
+        return tool;
+    }
+
+    public final Iterator<Tool> tools() {
+        return Collections.unmodifiableCollection(tools.values()).iterator();
     }
 
     public final Iterator<? extends Hole> holes() {
-        return holes.iterator();
+        return new Iterator<>() {
+            private final Iterator<Tool> toolIter = tools.values().iterator();
+            private Tool tool;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                while ((tool == null) || (index >= tool.size())) {
+                    if (!toolIter.hasNext()) return false;
+                    tool = toolIter.next();
+                    index = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public Hole next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return tool.get(index++);
+            }
+        };
     }
 
     public final List<? extends Hole> holesOfDiameter(double diameter) {
-        return holes.stream().filter(a -> (a.getDiameter().equals(diameter))).toList();
+        var tool = tools.get(diameter);
+        if (tool == null) return List.of();
+        return new AbstractList<Hole>() {
+            @Override
+            public Hole get(int index) {
+                return tool.get(Objects.checkIndex(index, tool.size()));
+            }
+
+            @Override
+            public int size() {
+                return tool.size();
+            }
+        };
+    }
+
+    public final int getHoleCount() {
+        var count = 0;
+        for (var tool : tools.values()) count += tool.size();
+        return count;
     }
 
     @Override
@@ -38,6 +176,6 @@ public class Excellon extends Layer {
     @Override
     public final void clean() {
         super.clean();
-        holes.clear();
+        tools.clear();
     }
 }
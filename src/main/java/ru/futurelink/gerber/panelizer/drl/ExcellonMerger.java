@@ -8,7 +8,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ExcellonMerger extends Merger {
-    @Getter private final Excellon layer;
+    @Getter private Excellon layer;
 
     private final static Logger log = Logger.getLogger("ExcellonMerger");
 
@@ -20,15 +20,23 @@ public class ExcellonMerger extends Merger {
     public final void add(Layer source, double xOffset, double yOffset) {
         if (source instanceof Excellon e) {
             log.log(Level.INFO, "Adding Excellon file {0}", new Object[]{source.getName()});
-            var holes = e.holes();
-            while (holes.hasNext()) {
-                layer.addHole(holes.next().offset(xOffset, yOffset));
+            var tools = e.tools();
+            while (tools.hasNext()) {
+                var tool = tools.next();
+                for (var i = 0; i < tool.size(); i++) {
+                    var routed = tool.getRouted(i);
+                    if (routed != null) {
+                        layer.addHole(routed.offset(xOffset, yOffset));
+                    } else {
+                        layer.addHole(tool.getX(i) + xOffset, tool.getY(i) + yOffset, tool.getDiameter());
+                    }
+                }
             }
         }
     }
 
     @Override
     public void clean() {
-        layer.clean();
+        layer = new Excellon(layer.getName());
     }
 }
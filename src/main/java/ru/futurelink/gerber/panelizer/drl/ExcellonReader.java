@@ -1,14 +1,12 @@
 package ru.futurelink.gerber.panelizer.drl;
 
-import ru.futurelink.gerber.panelizer.drl.holes.HoleRound;
 import ru.futurelink.gerber.panelizer.drl.holes.HoleRouted;
-import ru.futurelink.gerber.panelizer.canvas.Point;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 public class ExcellonReader {
     private final InputStream stream;
@@ -19,9 +17,16 @@ public class ExcellonReader {
 
     private final static Logger log = Logger.getLogger("ExcellonReader");
 
-    private final Pattern toolTableRegex = Pattern.compile("T(\\d+)C(\\d+\\.\\d*).*");
-    private final Pattern toolRegex = Pattern.compile("T(\\d+).*");
-    private final Pattern holeRegex = Pattern.compile("^(G\\d+)? *([XY]-?\\d+\\.?\\d*) *([XY]-?\\d+\\.?\\d*).*$");
+    private final static long maxExactValue = 1L << 53;
+    private final static double[] powersOfTen = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Line scanning state: position in the line and the last scanned number
+    private String line;
+    private int pos;
+    private double number;
 
     public ExcellonReader(File file) throws IOException {
         this(new FileInputStream(file));
@@ -35,23 +40,23 @@ public class ExcellonReader {
 
     public Excellon read(String name) throws IOException {
         var excellon = new Excellon(name);
-        var reader = new BufferedReader(new InputStreamReader(new BufferedInputStream((stream))));
+        var reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.ISO_8859_1), 64 * 1024);
         var currentTool = 0;
-        var currentPoint = new Point(0, 0);
+        Double currentDiameter = null;
+        double currentX = 0, currentY = 0;
         HoleRouted currentRoutedHole = null;
         var toolTable = new HashMap<Integer, Double>();
-        while (reader.ready()) {
-            var line = reader.readLine();
+        while ((line = reader.readLine()) != null) {
+            pos = 0;
             if (state == State.HEADER) {
                 if (line.equals("%")) {
                     state = State.BODY;
-                } else {
-                    var matcher = toolTableRegex.matcher(line);
-                    if (matcher.matches()) {
-                        var t = Integer.parseInt(matcher.group(1));
-                        var c = Double.parseDouble(matcher.group(2));
-                        toolTable.put(t, c);
-                        log.log(Level.FINE, "Found tool {0} diameter {1}", new Object[] { t, c });
+                } else if (scanChar('T') && scanInteger()) {
+                    // Tool definition: T<n>C<diameter>
+                    var t = (int) number;
+                    if (scanChar('C') && scanNumber()) {
+                        toolTable.put(t, number);
+                        log.log(Level.FINE, "Found tool {0} diameter {1}", new Object[] { t, number });
                     }
                 }
             } else if (state == State.BODY) {
@@ -59,60 +64,132 @@ public class ExcellonReader {
                     case "G05" -> // Turn off routing mode
                             currentRoutedHole = null;
                     case "M15" -> { // Drill down: creates a routed hole
-                        currentRoutedHole = new HoleRouted(currentPoint, toolTable.get(currentTool));
+                        currentRoutedHole = new HoleRouted(currentX, currentY, currentDiameter);
                         excellon.addHole(currentRoutedHole);
                         log.log(Level.FINE, "Found {0}", new Object[]{currentRoutedHole});
                     }
                     case "M16" -> // Drill up: ends up a routed hole
                         currentRoutedHole = null;
                     default -> {
-                        var holeMatcher = holeRegex.matcher(line);
-                        if (holeMatcher.matches()) {
-                            Integer code = null;
-                            Double x = null, y = null;
-                            for (var n = 1; n <= holeMatcher.groupCount(); n++) {
-                                var grp = holeMatcher.group(n);
-                                if (grp != null) {
-                                    switch (grp.charAt(0)) {
-                                        case 'G' -> code = Integer.parseInt(grp.substring(1));
-                                        case 'X' -> x = Double.parseDouble(grp.substring(1));
-                                        case 'Y' -> y = Double.parseDouble(grp.substring(1));
-                                    }
-                                }
-                            }
+                        if (line.isEmpty()) continue;
+                        var first = line.charAt(0);
+                        if ((first == 'G') || (first == 'X') || (first == 'Y')) {
+                            // Coordinates: [G<n>]X<x>Y<y>, lines without both of them are skipped
+                            var hasCode = scanChar('G');
+                            if (hasCode && !scanInteger()) continue;
+                            skipSpaces();
+                            var axis1 = scanAxis();
+                            if ((axis1 == 0) || !scanNumber()) continue;
+                            var value1 = number;
+                            skipSpaces();
+                            var axis2 = scanAxis();
+                            if ((axis2 == 0) || !scanNumber()) continue;
+                            var hasX = (axis1 == 'X') || (axis2 == 'X');
+                            var hasY = (axis1 == 'Y') || (axis2 == 'Y');
+                            var x = (axis1 == 'X') ? value1 : number;
+                            var y = (axis1 == 'Y') ? value1 : number;
 
                             // Should have both X and Y coordinates
-                            if ((x != null) && (y != null)) {
-                                currentPoint = new Point(x, y);
-                                if (code == null) {
+                            if (hasX && hasY) {
+                                currentX = x;
+                                currentY = y;
+                                if (!hasCode) {
                                     if (currentRoutedHole == null) {
-                                        excellon.addHole(new HoleRound(currentPoint, toolTable.get(currentTool)));
-                                        log.log(Level.FINE, "Found hole at {0} diameter {1}",
-                                                new Object[]{currentPoint, toolTable.get(currentTool)});
+                                        excellon.addHole(x, y, currentDiameter);
                                     } else {
                                         log.log(Level.WARNING, "Drill cannot be used in routing mode");
                                     }
-                                } else {
-                                    if (currentRoutedHole != null) { // Add point to current routed hole
-                                        currentRoutedHole.addPoint(currentPoint.getX(), currentPoint.getY());
-                                        log.log(Level.FINE, "Add point to {0}", new Object[]{currentRoutedHole});
-                                    }
+                                } else if (currentRoutedHole != null) { // Add point to current routed hole
+                                    currentRoutedHole.addPoint(x, y);
                                 }
                             } else {
                                 log.log(Level.WARNING, "Command is incomplete: " + line);
                             }
-                            continue;
-                        }
-                        var matcher = toolRegex.matcher(line);
-                        if (matcher.matches()) {
-                            currentTool = Integer.parseInt(matcher.group(1));
+                        } else if ((first == 'T') && scanChar('T') && scanInteger()) {
+                            currentTool = (int) number;
+                            currentDiameter = toolTable.get(currentTool);
                             log.log(Level.FINE, "Switch to tool {0}", new Object[]{currentTool});
-                            continue;
                         }
                     }
                 }
             }
         }
+        line = null;
         return excellon;
     }
+
+    private boolean scanChar(char c) {
+        if ((pos < line.length()) && (line.charAt(pos) == c)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private char scanAxis() {
+        if (scanChar('X')) return 'X';
+        if (scanChar('Y')) return 'Y';
+        return 0;
+    }
+
+    private void skipSpaces() {
+        while ((pos < line.length()) && (line.charAt(pos) == ' ')) pos++;
+    }
+
+    /**
+     * Scans unsigned integer into number.
+     */
+    private boolean scanInteger() {
+        var start = pos;
+        long value = 0;
+        while ((pos < line.length()) && (pos - start < 18)) {
+            var d = line.charAt(pos) - '0';
+            if ((d < 0) || (d > 9)) break;
+            value = value * 10 + d;
+            pos++;
+        }
+        number = value;
+        return pos > start;
+    }
+
+    /**
+     * Scans decimal number with optional minus sign and fractional part into number.
+     * Digits are accumulated into an integer which is divided by a power of ten once,
+     * so the result is correctly rounded as Double.parseDouble() gives.
+     */
+    private boolean scanNumber() {
+        var start = pos;
+        var negative = scanChar('-');
+        long value = 0;
+        var digits = 0;
+        var fractional = 0;
+        var point = false;
+        for (; pos < line.length(); pos++) {
+            var c = line.charAt(pos);
+            if ((c == '.') && !point) {
+                point = true;
+            } else if ((c >= '0') && (c <= '9')) {
+                if (digits < 18) {
+                    value = value * 10 + (c - '0');
+                    digits++;
+                    if (point) fractional++;
+                } else {
+                    digits++;
+                }
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            pos = start;
+            return false;
+        }
+        if ((digits > 18) || (value > maxExactValue) || (fractional >= powersOfTen.length)) {
+            number = Double.parseDouble(line.substring(start, pos));
+        } else {
+            number = value / powersOfTen[fractional];
+            if (negative) number = -number;
+        }
+        return true;
+    }
 }
@@ -1,13 +1,11 @@
 package ru.futurelink.gerber.panelizer.drl;
 
-import ru.futurelink.gerber.panelizer.drl.holes.HoleRound;
-import ru.futurelink.gerber.panelizer.drl.holes.HoleRouted;
+import ru.futurelink.gerber.panelizer.AsciiOutput;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,59 +20,65 @@ public class ExcellonWriter {
 
     public void write(Excellon drl) throws IOException {
         log.log(Level.INFO, "Writing Excellon file...");
-        var writer = new BufferedWriter(new OutputStreamWriter(stream));
-        var df = new Formatter(Locale.US);
+        var out = new AsciiOutput(stream);
 
-        // Analyze Excellon and build tools table
-        var toolTable = new ArrayList<Double>();
-        var iter = drl.holes();
-        while(iter.hasNext()) {
-            var h = iter.next();
-            if (!toolTable.contains(h.getDiameter())) {
-                toolTable.add(h.getDiameter());
+        // Tools are numbered in the order of the layer
+        var tools = new ArrayList<Excellon.Tool>();
+        var iter = drl.tools();
+        while (iter.hasNext()) {
+            var tool = iter.next();
+            if (tool.getDiameter() != null) {
+                tools.add(tool);
+            } else {
+                log.log(Level.WARNING, "Skipping {0} holes without diameter", new Object[] { tool.size() });
             }
         }
 
         // Write header
-        writer.write("M48\n");
-        writer.write("FMAT,2\n");
-        writer.write("METRIC\n");
+        out.write("M48\n");
+        out.write("FMAT,2\n");
+        out.write("METRIC\n");
 
         // Write tool table
-        for (var i = 0; i < toolTable.size(); i++) {
-            writer.write(new Formatter(Locale.US).format("T%dC%.3f\n", (i + 1), toolTable.get(i)).toString());
-            df.flush();
+        for (var i = 0; i < tools.size(); i++) {
+            out.write('T').write(i + 1).write('C').writeDecimal(tools.get(i).getDiameter(), 3).write('\n');
         }
-        writer.write("%\n");
-        writer.write("G90\nG05\n");
+        out.write("%\n");
+        out.write("G90\nG05\n");
 
         // Write holes grouped by tools
-        for (var i = 0; i < toolTable.size(); i++) {
-            writer.write("T" + (i + 1) + "\n");
-            var holes = drl.holesOfDiameter(toolTable.get(i));
-            log.log(Level.FINE, "Writing {0} holes of diameter {1}", new Object[] { holes.size(), toolTable.get(i) });
-            for (var h : holes) {
-                if (h instanceof HoleRound) {
-                    writer.write(new Formatter(Locale.US).format("X%.3fY%.3f\n", h.getX(), h.getY()).toString());
-                } else if (h instanceof HoleRouted rh) {
-                    writer.write(new Formatter(Locale.US).format("G00X%.3fY%.3f\n", h.getX(), h.getY()).toString());
-                    writer.write("M15\n"); // Drill down
+        for (var i = 0; i < tools.size(); i++) {
+            var tool = tools.get(i);
+            out.write('T').write(i + 1).write('\n');
+            log.log(Level.FINE, "Writing {0} holes of diameter {1}", new Object[] { tool.size(), tool.getDiameter() });
+            for (var n = 0; n < tool.size(); n++) {
+                var rh = tool.getRouted(n);
+                if (rh == null) {
+                    writePoint(out, tool.getX(n), tool.getY(n));
+                } else {
+                    out.write("G00");
+                    writePoint(out, rh.getX(), rh.getY());
+                    out.write("M15\n"); // Drill down
                     var pIter = rh.points();
                     while (pIter.hasNext()) {
                         var p = pIter.next();
-                        writer.write(new Formatter(Locale.US).format("G01X%.3fY%.3f\n", p.getX(), p.getY()).toString());
+                        out.write("G01");
+                        writePoint(out, p.getX(), p.getY());
                     }
-                    writer.write("M16\nG05\n"); // Drill up and turn off route mode
+                    out.write("M16\nG05\n"); // Drill up and turn off route mode
                 }
             }
         }
 
         // Write footer
-        writer.write("T0\nM30\n");
+        out.write("T0\nM30\n");
 
-        writer.flush();
+        out.flush();
     }
 
+    private static void writePoint(AsciiOutput out, double x, double y) throws IOException {
+        out.write('X').writeDecimal(x, 3).write('Y').writeDecimal(y, 3).write('\n');
+    }
 
     public void writeTools(Set<Double> tools) {
         for (var t : tools) {
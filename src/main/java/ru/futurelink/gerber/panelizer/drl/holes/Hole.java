@@ -3,6 +3,8 @@ package ru.futurelink.gerber.panelizer.drl.holes;
 import lombok.Getter;
 import ru.futurelink.gerber.panelizer.canvas.Point;
 
+import java.util.Objects;
+
 abstract public class Hole extends Point {
     @Getter private final Double diameter;
 
@@ -16,4 +18,14 @@ abstract public class Hole extends Point {
     }
 
     abstract public Hole offset(double xOffset, double yOffset);
+
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && Objects.equals(diameter, ((Hole) o).diameter);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + Objects.hashCode(diameter);
+    }
 }
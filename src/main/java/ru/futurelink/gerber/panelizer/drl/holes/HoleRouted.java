@@ -34,6 +34,16 @@ public class HoleRouted extends Hole {
         return h;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && points.equals(((HoleRouted) o).points);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + points.hashCode();
+    }
+
     @Override
     public String toString() {
         return String.format("Routed hole %s, points %s", super.toString(), points);
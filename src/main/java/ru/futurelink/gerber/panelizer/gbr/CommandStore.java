@@ -0,0 +1,388 @@
+package ru.futurelink.gerber.panelizer.gbr;
+
+import ru.futurelink.gerber.panelizer.gbr.cmd.Command;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.D01To03;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
+import ru.futurelink.gerber.panelizer.gbr.cmd.g.GCode;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar storage of Gerber contents. Commands are kept as an opcode and
+ * primitive arguments in parallel arrays, so draw commands do not need an
+ * object each. Command objects are created only when they are requested.
+ * A view shares the arrays of its store and moves coordinates and changes
+ * aperture codes as they are read, so placing a layer many times does not
+ * copy its commands.
+ */
+public class CommandStore {
+    public final static byte DRAW = 1;      // D01
+    public final static byte MOVE = 2;      // D02
+    public final static byte FLASH = 3;     // D03
+    public final static byte APERTURE = 4;  // Dnn, nn >= 10
+    public final static byte GCODE = 5;     // Gnn without parameters
+    public final static byte OTHER = 6;     // Any other command, kept as an object
+
+    private final static int initialCapacity = 16;
+
+    private byte[] opcodes;
+    private int[] args;         // Arc index (or -1) for D01-D03, code for apertures and G-codes, object index for others
+    private double[] xs;
+    private double[] ys;
+    private int size;
+
+    // Arc offsets are rare, they are stored aside, missing one is NaN
+    private double[] is;
+    private double[] js;
+    private int arcCount;
+
+    private ArrayList<Command> others;
+
+    // Offset and aperture code table (code -> code, null for the same codes) of a view
+    private double xOffset, yOffset;
+    private int[] apertureCodes;
+    private boolean view;
+
+    // Bounds of D01-D03 coordinates
+    private double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+    private double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+    public CommandStore() {
+        opcodes = new byte[initialCapacity];
+        args = new int[initialCapacity];
+        xs = new double[initialCapacity];
+        ys = new double[initialCapacity];
+        is = new double[initialCapacity];
+        js = new double[initialCapacity];
+        others = new ArrayList<>();
+    }
+
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * Removes all commands. Arrays are given up rather than reused,
+     * as views made before may still read them.
+     */
+    public final void clear() {
+        checkWritable();
+        opcodes = new byte[initialCapacity];
+        args = new int[initialCapacity];
+        xs = new double[initialCapacity];
+        ys = new double[initialCapacity];
+        is = new double[initialCapacity];
+        js = new double[initialCapacity];
+        others = new ArrayList<>();
+        size = arcCount = 0;
+        minX = minY = Double.MAX_VALUE;
+        maxX = maxY = -Double.MAX_VALUE;
+    }
+
+    public final boolean isEmpty() {
+        return size == 0;
+    }
+
+    public final double getMinX() {
+        return minX;
+    }
+
+    public final double getMinY() {
+        return minY;
+    }
+
+    public final double getMaxX() {
+        return maxX;
+    }
+
+    public final double getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * View of the commands added so far, with D01-D03 coordinates moved by the offset.
+     */
+    public final CommandStore translated(double xOffset, double yOffset) {
+        return view(xOffset, yOffset, null);
+    }
+
+    /**
+     * View of the commands added so far, with coordinates moved by the offset and
+     * aperture codes substituted. Codes missing in the table are kept.
+     */
+    public final CommandStore view(double xOffset, double yOffset, Map<Integer, Integer> apertureCodes) {
+        var v = new CommandStore(this);
+        v.xOffset = this.xOffset + xOffset;
+        v.yOffset = this.yOffset + yOffset;
+        if ((apertureCodes != null) && !apertureCodes.isEmpty()) {
+            var max = (this.apertureCodes != null) ? this.apertureCodes.length - 1 : 0;
+            for (var code : apertureCodes.keySet()) max = Math.max(max, code);
+            var table = new int[max + 1];
+            for (var code = 0; code <= max; code++) {
+                var c = aperture(code);
+                table[code] = apertureCodes.getOrDefault(c, c);
+            }
+            v.apertureCodes = table;
+        }
+        if (minX <= maxX) {
+            v.minX = minX + xOffset;
+            v.maxX = maxX + xOffset;
+            v.minY = minY + yOffset;
+            v.maxY = maxY + yOffset;
+        }
+        return v;
+    }
+
+    // Shares the arrays of the store
+    private CommandStore(CommandStore store) {
+        opcodes = store.opcodes;
+        args = store.args;
+        xs = store.xs;
+        ys = store.ys;
+        size = store.size;
+        is = store.is;
+        js = store.js;
+        arcCount = store.arcCount;
+        others = store.others;
+        apertureCodes = store.apertureCodes;
+        view = true;
+    }
+
+    /**
+     * Commands of the cursor put into one store.
+     */
+    public static CommandStore copyOf(Cursor c) {
+        var copy = new CommandStore();
+        while (c.next()) {
+            switch (c.getOpcode()) {
+                case DRAW, MOVE, FLASH -> {
+                    if (c.isArc()) {
+                        copy.addDraw(c.getCode(), c.getX(), c.getY(), c.getI(), c.getJ());
+                    } else {
+                        copy.addDraw(c.getCode(), c.getX(), c.getY());
+                    }
+                }
+                case APERTURE -> copy.addAperture(c.getCode());
+                case GCODE -> copy.addGCode(c.getCode());
+                default -> {
+                    copy.append(OTHER, copy.others.size(), 0, 0);
+                    copy.others.add(c.getCommand());
+                }
+            }
+        }
+        return copy;
+    }
+
+    private int aperture(int code) {
+        return ((apertureCodes != null) && (code < apertureCodes.length)) ? apertureCodes[code] : code;
+    }
+
+    private void checkWritable() {
+        if (view) throw new IllegalStateException("View of commands can't be changed");
+    }
+
+    public final void add(Command cmd) {
+        if (cmd instanceof D01To03 d) {
+            if ((d.getI() != null) || (d.getJ() != null)) {
+                addDraw(d.getCode(), d.getX(), d.getY(), d.getI(), d.getJ());
+            } else {
+                addDraw(d.getCode(), d.getX(), d.getY());
+            }
+        } else if (cmd instanceof DAperture a) {
+            addAperture(a.getCode());
+        } else if ((cmd instanceof GCode g) && ((g.getParam() == null) || g.getParam().isEmpty())) {
+            addGCode(g.getCode());
+        } else {
+            append(OTHER, others.size(), 0, 0);
+            others.add(cmd);
+        }
+    }
+
+    public final void addDraw(int code, double x, double y) {
+        append(opcodeOf(code), -1, x, y);
+        updateBounds(x, y);
+    }
+
+    public final void addDraw(int code, double x, double y, Double i, Double j) {
+        if (arcCount == is.length) {
+            is = Arrays.copyOf(is, arcCount * 2);
+            js = Arrays.copyOf(js, arcCount * 2);
+        }
+        is[arcCount] = (i != null) ? i : Double.NaN;
+        js[arcCount] = (j != null) ? j : Double.NaN;
+        append(opcodeOf(code), arcCount++, x, y);
+        updateBounds(x, y);
+    }
+
+    private void updateBounds(double x, double y) {
+        if (x < minX) minX = x;
+        if (y < minY) minY = y;
+        if (x > maxX) maxX = x;
+        if (y > maxY) maxY = y;
+    }
+
+    public final void addAperture(int code) {
+        append(APERTURE, code, 0, 0);
+    }
+
+    public final void addGCode(int code) {
+        append(GCODE, code, 0, 0);
+    }
+
+    private static byte opcodeOf(int code) {
+        return switch (code) {
+            case 1 -> DRAW;
+            case 2 -> MOVE;
+            case 3 -> FLASH;
+            default -> throw new IllegalArgumentException("Invalid D code " + code);
+        };
+    }
+
+    private void append(byte opcode, int arg, double x, double y) {
+        checkWritable();
+        if (size == opcodes.length) {
+            var capacity = size * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            args = Arrays.copyOf(args, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+        opcodes[size] = opcode;
+        args[size] = arg;
+        xs[size] = x;
+        ys[size] = y;
+        size++;
+    }
+
+    /**
+     * Creates command object for the specified position.
+     */
+    public final Command get(int index) {
+        if ((index < 0) || (index >= size)) throw new IndexOutOfBoundsException(index);
+        var arg = args[index];
+        return switch (opcodes[index]) {
+            case DRAW, MOVE, FLASH -> (arg < 0) ?
+                    new D01To03((int) opcodes[index], xs[index] + xOffset, ys[index] + yOffset) :
+                    new D01To03((int) opcodes[index], xs[index] + xOffset, ys[index] + yOffset, arcI(arg), arcJ(arg));
+            case APERTURE -> new DAperture(aperture(arg));
+            case GCODE -> new GCode(arg, null);
+            default -> others.get(arg);
+        };
+    }
+
+    private Double arcI(int arc) {
+        return Double.isNaN(is[arc]) ? null : is[arc];
+    }
+
+    private Double arcJ(int arc) {
+        return Double.isNaN(js[arc]) ? null : js[arc];
+    }
+
+    /**
+     * Read-only list view, command objects are created on each access.
+     */
+    public final List<Command> asList() {
+        return asList(List.of(this));
+    }
+
+    /**
+     * Read-only list view of stores following one another.
+     */
+    public static List<Command> asList(List<CommandStore> parts) {
+        var starts = new int[parts.size() + 1];
+        for (var p = 0; p < parts.size(); p++) starts[p + 1] = starts[p] + parts.get(p).size;
+        return new AbstractList<>() {
+            @Override
+            public Command get(int index) {
+                if ((index < 0) || (index >= size())) throw new IndexOutOfBoundsException(index);
+                var p = Arrays.binarySearch(starts, index);
+                // Empty parts share their start with the next one
+                if (p < 0) p = -p - 2; else while (starts[p + 1] == index) p++;
+                return parts.get(p).get(index - starts[p]);
+            }
+
+            @Override
+            public int size() {
+                return starts[parts.size()];
+            }
+        };
+    }
+
+    public final Cursor cursor() {
+        return new Cursor(List.of(this));
+    }
+
+    public static Cursor cursor(List<CommandStore> parts) {
+        return new Cursor(parts);
+    }
+
+    /**
+     * Walks through the commands of stores without creating objects for them.
+     */
+    public static final class Cursor {
+        private final List<CommandStore> parts;
+        private CommandStore store;
+        private int part;
+        private int index = -1;
+
+        private Cursor(List<CommandStore> parts) {
+            this.parts = parts;
+            this.store = parts.isEmpty() ? null : parts.get(0);
+        }
+
+        public boolean next() {
+            if (store == null) return false;
+            while (++index >= store.size) {
+                if (++part >= parts.size()) {
+                    store = null;
+                    return false;
+                }
+                store = parts.get(part);
+                index = -1;
+            }
+            return true;
+        }
+
+        public byte getOpcode() {
+            return store.opcodes[index];
+        }
+
+        /**
+         * D code for D01-D03, aperture code or G-code.
+         */
+        public int getCode() {
+            var opcode = store.opcodes[index];
+            if ((opcode == DRAW) || (opcode == MOVE) || (opcode == FLASH)) return opcode;
+            return (opcode == APERTURE) ? store.aperture(store.args[index]) : store.args[index];
+        }
+
+        public double getX() {
+            return store.xs[index] + store.xOffset;
+        }
+
+        public double getY() {
+            return store.ys[index] + store.yOffset;
+        }
+
+        public boolean isArc() {
+            var opcode = store.opcodes[index];
+            return ((opcode == DRAW) || (opcode == MOVE) || (opcode == FLASH)) && (store.args[index] >= 0);
+        }
+
+        public Double getI() {
+            return isArc() ? store.arcI(store.args[index]) : null;
+        }
+
+        public Double getJ() {
+            return isArc() ? store.arcJ(store.args[index]) : null;
+        }
+
+        public Command getCommand() {
+            return store.get(index);
+        }
+    }
+}
@@ -10,33 +10,126 @@ import ru.futurelink.gerber.panelizer.gbr.cmd.l.*;
 import ru.futurelink.gerber.panelizer.gbr.cmd.t.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.function.Predicate;
 
 public class Gerber extends Layer {
-    private Integer MOIndex = -1;
-    private Integer FSIndex = -1;
-
-    private final ArrayList<Command> Commands;
+    private MO MOCommand;
+    private FS FSCommand;
+
+    // Commands are sorted into sections as they are added
+    private final ArrayList<Command> Header;
+    private final ArrayList<Command> Macros;
+    private final ArrayList<Command> Apertures;
+    // Contents are kept in parts, commands are added to the last one
+    private final ArrayList<CommandStore> Contents;
+    private CommandStore lastPart;
+    private SR repeat;                  // Step and repeat block being added
+
+    private final HashSet<String> macroNames;
+    private final HashMap<String, String> attributes;
+    private int apertureLastIndex;
 
     public Gerber(String name) {
         super(name);
-        this.Commands = new ArrayList<>();
+        this.Header = new ArrayList<>();
+        this.Macros = new ArrayList<>();
+        this.Apertures = new ArrayList<>();
+        this.Contents = new ArrayList<>();
+        this.macroNames = new HashSet<>();
+        this.attributes = new HashMap<>();
+        this.apertureLastIndex = 10;
     }
 
     public void add(Command cmd) {
-        if (cmd instanceof MO) {
-            MOIndex = Commands.size();
-        } else if (cmd instanceof FS) {
-            FSIndex = Commands.size();
-        } else if (cmd instanceof D01To03 d) {
-            // Update min and max coords
-            if (d.getX() < minX) minX = d.getX();
-            if (d.getY() < minY) minY = d.getY();
-            if (d.getX() > maxX) maxX = d.getX();
-            if (d.getY() > maxY) maxY = d.getY();
+        if ((cmd instanceof TF) || (cmd instanceof FS) || (cmd instanceof MO)) {
+            if (cmd instanceof MO m) {
+                MOCommand = m;
+            } else if (cmd instanceof FS f) {
+                FSCommand = f;
+            } else if (cmd instanceof TF t) {
+                attributes.putIfAbsent(t.getName(), String.join(",", t.getParams()));
+            }
+            Header.add(cmd);
+        } else if (cmd instanceof AM m) {
+            macroNames.add(m.getName());
+            Macros.add(cmd);
+        } else if (cmd instanceof AD a) {
+            if (a.getCode() > apertureLastIndex) apertureLastIndex = a.getCode();
+            Apertures.add(cmd);
+        } else if (isContents(cmd)) {
+            if (cmd instanceof D01To03 d) updateBounds(d.getX(), d.getY());
+            if (cmd instanceof SR r) repeat = r.isOpen() ? r : null;
+            lastPart().add(cmd);
+        }
+        // Comments and object attributes are not used, so they are not kept
+    }
+
+    /**
+     * Adds D01-D03 command without creating an object for it.
+     */
+    public void add(int code, double x, double y) {
+        updateBounds(x, y);
+        lastPart().addDraw(code, x, y);
+    }
+
+    /**
+     * Adds D01-D03 command with arc offsets without creating an object for it.
+     */
+    public void add(int code, double x, double y, Double i, Double j) {
+        updateBounds(x, y);
+        lastPart().addDraw(code, x, y, i, j);
+    }
+
+    /**
+     * Adds contents part as is, without copying. The part must not be
+     * changed after that, so it can be shared between layers.
+     */
+    public void add(CommandStore part) {
+        if (part.isEmpty()) return;
+        if ((lastPart != null) && lastPart.isEmpty()) Contents.remove(Contents.size() - 1);
+        Contents.add(part);
+        lastPart = null;
+        if (part.getMinX() <= part.getMaxX()) {
+            updateBounds(part.getMinX(), part.getMinY());
+            updateBounds(part.getMaxX(), part.getMaxY());
+        }
+    }
+
+    private CommandStore lastPart() {
+        if (lastPart == null) {
+            lastPart = new CommandStore();
+            Contents.add(lastPart);
         }
-        Commands.add(cmd);
+        return lastPart;
+    }
+
+    private void updateBounds(double x, double y) {
+        if (repeat != null) {
+            // The last copy of the block
+            var lastX = x + repeat.getXStep() * (repeat.getXRepeat() - 1);
+            var lastY = y + repeat.getYStep() * (repeat.getYRepeat() - 1);
+            if (lastX > maxX) maxX = lastX;
+            if (lastY > maxY) maxY = lastY;
+        }
+        if (x < minX) minX = x;
+        if (y < minY) minY = y;
+        if (x > maxX) maxX = x;
+        if (y > maxY) maxY = y;
+    }
+
+    private static boolean isContents(Command cmd) {
+        if (cmd instanceof GCode c) {
+            return (c.getCode() != 4);  // Ignore any comments
+        } else return
+                (cmd instanceof DAperture) ||
+                (cmd instanceof LP) ||
+                (cmd instanceof LM) ||
+                (cmd instanceof LR) ||
+                (cmd instanceof LS) ||
+                (cmd instanceof SR);
     }
 
     public double getWidth() {
@@ -48,77 +141,55 @@ public class Gerber extends Layer {
     }
 
     public List<Command> getApertures() {
-        Predicate<Command> f = cmd -> cmd instanceof AD;
-        return Commands.stream().filter(f).toList();
+        return Collections.unmodifiableList(Apertures);
     }
 
     public List<Command> getMacros() {
-        Predicate<Command> f = cmd -> cmd instanceof AM;
-        return Commands.stream().filter(f).toList();
+        return Collections.unmodifiableList(Macros);
     }
 
     public boolean hasMacro(String name) {
-        for (var c : getMacros()) {
-            if (((AM)c).getName().equals(name)) return true;
-        }
-        return false;
+        return macroNames.contains(name);
     }
 
     public List<Command> getHeader() {
-        Predicate<Command> f = cmd ->
-                (cmd instanceof TF) ||
-                (cmd instanceof FS) ||
-                (cmd instanceof MO);
-        return Commands.stream().filter(f).toList();
+        return Collections.unmodifiableList(Header);
     }
 
+    /**
+     * Contents as a list, command objects are created on access, so
+     * use contents() cursor to walk through large layers.
+     */
     public List<Command> getContents() {
-        Predicate<Command> f = cmd -> {
-            if (cmd instanceof GCode c) {
-                return (c.getCode() != 4);  // Ignore any comments
-            } else return
-                    (cmd instanceof DAperture) ||
-                    (cmd instanceof LP) ||
-                    (cmd instanceof LM) ||
-                    (cmd instanceof LR) ||
-                    (cmd instanceof LS);
-        };
-        return Commands.stream().filter(f).toList();
+        return CommandStore.asList(Contents);
+    }
+
+    public CommandStore.Cursor contents() {
+        return CommandStore.cursor(Contents);
+    }
+
+    /**
+     * Contents in one store, parts are joined into a new one if there are several.
+     */
+    public CommandStore getStore() {
+        if (Contents.size() == 1) return Contents.get(0);
+        return CommandStore.copyOf(contents());
     }
 
     public final int getApertureLastIndex() {
-        int lastIndex = 10;
-        for (var aperture : getApertures()) {
-            if (((AD)aperture).getCode() > lastIndex) {
-                lastIndex = ((AD)aperture).getCode();
-            }
-        }
-        return lastIndex;
+        return apertureLastIndex;
     }
 
     public final String getTF(String attributeName) {
-        for (var cmd : getHeader()) {
-            if (cmd instanceof TF c) {
-                if (c.getName().equals(attributeName)) {
-                    return String.join(",", c.getParams());
-                }
-            }
-        }
-        return null;
+        return attributes.get(attributeName);
     }
 
     public final FS getFS() {
-        if (FSIndex >= 0) {
-            return (FS) Commands.get(FSIndex);
-        }
-        return null;
+        return FSCommand;
     }
 
     public final MO getMO() {
-        if (MOIndex >= 0) {
-            return (MO) Commands.get(MOIndex);
-        }
-        return null;
+        return MOCommand;
     }
 
     @Override
@@ -145,7 +216,16 @@ public class Gerber extends Layer {
     @Override
     public final void clean() {
         super.clean();
-        MOIndex = FSIndex = -1;
-        Commands.clear();
+        MOCommand = null;
+        FSCommand = null;
+        Header.clear();
+        Macros.clear();
+        Apertures.clear();
+        Contents.clear();
+        lastPart = null;
+        repeat = null;
+        macroNames.clear();
+        attributes.clear();
+        apertureLastIndex = 10;
     }
 }
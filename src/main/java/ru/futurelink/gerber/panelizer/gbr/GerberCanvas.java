@@ -4,18 +4,18 @@ import lombok.Getter;
 import ru.futurelink.gerber.panelizer.Layer;
 import ru.futurelink.gerber.panelizer.canvas.*;
 import ru.futurelink.gerber.panelizer.drl.holes.Hole;
-import ru.futurelink.gerber.panelizer.drl.holes.HoleRound;
 import ru.futurelink.gerber.panelizer.canvas.fetaures.Feature;
 import ru.futurelink.gerber.panelizer.drl.Excellon;
 import ru.futurelink.gerber.panelizer.exceptions.MergerException;
 import ru.futurelink.gerber.panelizer.gbr.cmd.a.AD;
-import ru.futurelink.gerber.panelizer.gbr.cmd.d.D01To03;
 import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
 import ru.futurelink.gerber.panelizer.gbr.cmd.g.GCode;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,6 +30,13 @@ public class GerberCanvas {
     private Geometry.QuadrantMode currentQuadrantMode;
 
     private final ArrayList<Feature> features;
+    private GeometryIndex geometryIndex;
+    private HashMap<Geometry, ArrayList<Feature>> featuresByGeometry;
+
+    // Feature is calculated again only if it has moved or geometry around it has changed
+    private record FeatureState(Layer.Type type, long revision, List<Geometry> geometry) {}
+    private final HashMap<Feature, FeatureState> featureStates;
+    @Getter private int recalculatedFeatures;
 
     private final static Logger log = Logger.getLogger("GerberCanvas");
 
@@ -39,6 +46,7 @@ public class GerberCanvas {
         this.geometry = new ArrayList<>();
         this.holes = new ArrayList<>();
         this.features = new ArrayList<>();
+        this.featureStates = new HashMap<>();
     }
 
     public final void draw(Layer layer) {
@@ -61,40 +69,40 @@ public class GerberCanvas {
 
         apertures.clear();
         geometry.clear();
+        geometryIndex = null;
+        featuresByGeometry = null;
         currentCoordinate = new Point(0, 0);
         currentAperture = 0;
 
         for (var aperture : gerber.getApertures()) {
             apertures.add((AD)aperture);
         }
-        for (var cmd : gerber.getContents()) {
-            if (cmd instanceof GCode g) {
-                if ((g.getCode() > 0) && (g.getCode() <= 3)) {
-                    currentInterpolation = switch (g.getCode()) {
-                        case 1 -> Geometry.Interpolation.LINEAR;
-                        case 2 -> Geometry.Interpolation.CW;
-                        case 3 -> Geometry.Interpolation.CCW;
-                        default -> null;
-                    };
-                } else if (g.getCode() == 75) {
-                    currentQuadrantMode = Geometry.QuadrantMode.MULTI;
-                } else if (g.getCode() == 74) {
-                    currentQuadrantMode = Geometry.QuadrantMode.SINGLE;
-                }
-            } else if (cmd instanceof DAperture d) {
-                if (d instanceof D01To03 d2) {
-                    switch (d2.getCode()) {
-                        case 2 -> move(new Point(d2.getX(), d2.getY()));
-                        case 1 -> {
-                            if (currentInterpolation == Geometry.Interpolation.LINEAR)
-                                drawLine(new Point(d2.getX(), d2.getY()));
-                            else
-                                drawArc(new Point(d2.getX(), d2.getY()), d2.getI(), d2.getJ(), currentQuadrantMode);
-                        }
+        var c = gerber.contents();
+        while (c.next()) {
+            switch (c.getOpcode()) {
+                case CommandStore.GCODE -> {
+                    var code = c.getCode();
+                    if ((code > 0) && (code <= 3)) {
+                        currentInterpolation = switch (code) {
+                            case 1 -> Geometry.Interpolation.LINEAR;
+                            case 2 -> Geometry.Interpolation.CW;
+                            case 3 -> Geometry.Interpolation.CCW;
+                            default -> null;
+                        };
+                    } else if (code == 75) {
+                        currentQuadrantMode = Geometry.QuadrantMode.MULTI;
+                    } else if (code == 74) {
+                        currentQuadrantMode = Geometry.QuadrantMode.SINGLE;
                     }
-                } else {
-                    currentAperture = d.getCode();
                 }
+                case CommandStore.MOVE -> move(new Point(c.getX(), c.getY()));
+                case CommandStore.DRAW -> {
+                    if (currentInterpolation == Geometry.Interpolation.LINEAR)
+                        drawLine(new Point(c.getX(), c.getY()));
+                    else
+                        drawArc(new Point(c.getX(), c.getY()), c.getI(), c.getJ(), currentQuadrantMode);
+                }
+                case CommandStore.APERTURE -> currentAperture = c.getCode();
             }
         }
         // Reset state
@@ -110,11 +118,15 @@ public class GerberCanvas {
 
     public final void drawLine(Point p) {
         geometry.add(new Line(currentCoordinate, p, currentAperture));
+        geometryIndex = null;
+        featuresByGeometry = null;
         move(p);
     }
 
     public  final void drawArc(Point p, double i, double j, Geometry.QuadrantMode quadrantMode) {
         geometry.add(new Arc(currentCoordinate, p, i, j, currentInterpolation, currentAperture, quadrantMode));
+        geometryIndex = null;
+        featuresByGeometry = null;
         move(p);
     }
 
@@ -125,32 +137,68 @@ public class GerberCanvas {
 
     public final void addFeature(Feature f) {
         features.add(f);
+        featuresByGeometry = null;
+    }
+
+    /**
+     * Replaces canvas features, calculated data of features that stay is kept.
+     */
+    public final void setFeatures(Collection<Feature> list) {
+        features.clear();
+        features.addAll(list);
+        featureStates.keySet().retainAll(new HashSet<>(list));
+        featuresByGeometry = null;
+    }
+
+    /**
+     * Returns index of canvas geometry, it is built once after the geometry is changed.
+     */
+    public final GeometryIndex getGeometryIndex() {
+        if (geometryIndex == null) geometryIndex = new GeometryIndex(geometry);
+        return geometryIndex;
     }
 
     public final void recalculate(Layer.Type type) {
         log.log(Level.INFO, "Refreshing canvas...");
+        recalculatedFeatures = 0;
+        if (features.isEmpty()) return;
+        var index = getGeometryIndex();
         for (var f : features) {
+            var near = index.query(f.getTopLeft(), f.getBottomRight());
+            var state = featureStates.get(f);
+            if ((state != null) && (state.type() == type) && (state.revision() == f.getRevision()) &&
+                    state.geometry().equals(near)) continue;
+
             log.log(Level.FINE, "Calculating feature {0}", new Object[] { f });
             f.cleanAffectedGeometry(type);
-            for (var line : geometry) {
+            for (var line : near) {
                 f.calculateAffectedGeometry(type, line);
             }
+            featureStates.put(f, new FeatureState(type, f.getRevision(), near));
+            recalculatedFeatures++;
         }
+        log.log(Level.INFO, "Calculated {0} of {1} features", new Object[] { recalculatedFeatures, features.size() });
+        featuresByGeometry = null;
+        featuresByGeometry();
     }
 
-    private boolean isFeaturedGeometry(Geometry g) {
-        for (var f : features) {
-            if (f.affects(g)) return true;
-        }
-        return false;
-    }
-
-    private Set<Feature> featuresAffectGeometry(Geometry g) {
-        var l = new HashSet<Feature>();
-        for (var f : features) {
-            if (f.affects(g)) l.add(f);
+    /**
+     * Returns features affecting each geometry object. It is built after
+     * recalculation from geometry near each feature.
+     */
+    private HashMap<Geometry, ArrayList<Feature>> featuresByGeometry() {
+        if (featuresByGeometry == null) {
+            featuresByGeometry = new HashMap<>();
+            if (!features.isEmpty()) {
+                var index = getGeometryIndex();
+                for (var f : features) {
+                    for (var g : index.query(f.getTopLeft(), f.getBottomRight())) {
+                        if (f.affects(g)) featuresByGeometry.computeIfAbsent(g, k -> new ArrayList<>()).add(f);
+                    }
+                }
+            }
         }
-        return l;
+        return featuresByGeometry;
     }
 
     public final void writeToExcellon(Excellon e) {
@@ -161,7 +209,7 @@ public class GerberCanvas {
                     var g = i.next();
                     log.log(Level.FINE, "Adding feature hole at {0} diameter {1}",
                             new Object[] { g, g.getDiameter() });
-                    e.addHole(new HoleRound(g.getX(), g.getY(), g.getDiameter()));
+                    e.addHole(g.getX(), g.getY(), g.getDiameter());
                 }
             }
         }
@@ -171,7 +219,7 @@ public class GerberCanvas {
         currentAperture = 0;
         currentInterpolation = null;
         currentQuadrantMode = Geometry.QuadrantMode.SINGLE;
-        currentCoordinate = new Point(0, 0);
+        currentCoordinate = null;           // First geometry always starts with a move
 
         log.log(Level.INFO, "Writing from canvas to Gerber...");
         if (apertures.size() == 0) log.log(Level.WARNING, "No apertures defined");
@@ -181,16 +229,18 @@ public class GerberCanvas {
         for (var aperture : apertures) gerber.add(aperture);
 
         // Output all geometry
+        var featured = featuresByGeometry();
         for (var g : geometry) {
             // Write command
-            if (isFeaturedGeometry(g)) {
+            // Pierces of the previous writing go away, features could have been moved or removed since
+            if (g instanceof Line l) l.clean();
+            var affecting = featured.get(g);
+            if (affecting != null) {
                 // Get all features that affect the line and get all pierces (interruptions) in line.
                 // That interruptions we need to add to a line object.
                 log.log(Level.INFO, "{0} is affected by features", new Object[] { g });
                 if (g instanceof Line l) {
-                    l.clean();
-                    var features = featuresAffectGeometry(l);
-                    for (var f : features) {
+                    for (var f : affecting) {
                         l.addPierces(f.getPierces().get(l));
                     }
                 } else if (g instanceof Arc) {
@@ -250,19 +300,19 @@ public class GerberCanvas {
         if (g instanceof Line l) {
             for (var sl : l.subLines()) {
                 moveToPoint(gerber, sl.getStart());
-                gerber.add(new D01To03(1, sl.getEnd().getX(), sl.getEnd().getY()));
+                gerber.add(1, sl.getEnd().getX(), sl.getEnd().getY());
             }
             currentCoordinate = l.getEnd();
         } else if (g instanceof Arc a) {
             moveToPoint(gerber, g.getStart());
-            gerber.add(new D01To03(1, a.getEnd().getX(), a.getEnd().getY(), a.getI(), a.getJ()));
+            gerber.add(1, a.getEnd().getX(), a.getEnd().getY(), a.getI(), a.getJ());
             currentCoordinate = a.getEnd();
         }
     }
 
     private void moveToPoint(Gerber gerber, Point p) {
-        if (!currentCoordinate.equals(p)) {
-            gerber.add(new D01To03(2, p.getX(), p.getY()));
+        if ((currentCoordinate == null) || !currentCoordinate.equals(p)) {
+            gerber.add(2, p.getX(), p.getY());
             currentCoordinate = p;
         }
     }
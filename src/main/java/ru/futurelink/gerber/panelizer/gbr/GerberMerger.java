@@ -3,92 +3,250 @@ package ru.futurelink.gerber.panelizer.gbr;
 import lombok.Getter;
 import ru.futurelink.gerber.panelizer.Layer;
 import ru.futurelink.gerber.panelizer.Merger;
+import ru.futurelink.gerber.panelizer.gbr.cmd.Command;
 import ru.futurelink.gerber.panelizer.gbr.cmd.FS;
 import ru.futurelink.gerber.panelizer.gbr.cmd.MO;
+import ru.futurelink.gerber.panelizer.gbr.cmd.SR;
 import ru.futurelink.gerber.panelizer.gbr.cmd.a.AD;
 import ru.futurelink.gerber.panelizer.gbr.cmd.a.AM;
-import ru.futurelink.gerber.panelizer.gbr.cmd.d.D01To03;
-import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
 import ru.futurelink.gerber.panelizer.gbr.cmd.t.TF;
 
 import java.math.BigDecimal;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class GerberMerger extends Merger {
-    @Getter private final Gerber layer;
+    @Getter private Gerber layer;
+
+    // Indexes of macros and apertures in the layer, to find duplicates by hash
+    private record ApertureKey(String macro, String value) {}
+    private final HashMap<ApertureKey, Integer> apertureCodes;
+    private final HashMap<String, String> macroBodies;        // Name -> body
+    private final HashMap<String, String> renamedMacros;      // Name and body -> name in the layer
+    private int indexedApertures;
+    private int indexedMacros;
+    private int nextApertureCode;
+
+    /**
+     * Source layer in terms of the merged one: macros and apertures it needs
+     * and a view of its commands with aperture codes of the merged layer.
+     */
+    private record Remap(List<Command> definitions, CommandStore commands) {}
+    private final HashMap<Gerber, Remap> remaps;
+    private final HashSet<Gerber> defined;              // Sources with definitions in the layer
+    private final HashSet<Integer> definedCodes;        // Aperture codes in the layer
+
+    /**
+     * Source placed with an offset by place(), a view of its commands
+     * is made again only when the offset changes.
+     */
+    private static final class Segment {
+        private final Gerber source;
+        private double xOffset, yOffset;
+        private CommandStore commands;
+        private int round;
+
+        private Segment(Gerber source) {
+            this.source = source;
+        }
+    }
+    private final HashMap<UUID, Segment> segments;
+    private int round;
 
     private final static Logger log = Logger.getLogger("GerberMerger");
 
     public GerberMerger(Layer.Type type, String name) {
         this.layer = new Gerber(name);
+        this.apertureCodes = new HashMap<>();
+        this.macroBodies = new HashMap<>();
+        this.renamedMacros = new HashMap<>();
+        this.remaps = new HashMap<>();
+        this.defined = new HashSet<>();
+        this.definedCodes = new HashSet<>();
+        this.segments = new HashMap<>();
+        this.nextApertureCode = 10;
         fillHeader(type, name);
     }
 
     @Override
     public void clean() {
+        newLayer();
+        apertureCodes.clear();
+        macroBodies.clear();
+        renamedMacros.clear();
+        remaps.clear();
+        segments.clear();
+        nextApertureCode = 10;
+    }
+
+    private void newLayer() {
         // Persist layer type and name of Gerber
         var name = layer.getName();
         var type = layer.getLayerType();
-        layer.clean();
+        layer = new Gerber(name);
+        defined.clear();
+        definedCodes.clear();
+        indexedApertures = indexedMacros = 0;
         fillHeader(type, name);
     }
 
+    /**
+     * Adds macros and apertures that were put into the layer
+     * bypassing the merger (e.g. by canvas) to the indexes.
+     */
+    private void updateIndexes() {
+        var apertures = layer.getApertures();
+        for (; indexedApertures < apertures.size(); indexedApertures++) {
+            var a = (AD) apertures.get(indexedApertures);
+            apertureCodes.putIfAbsent(new ApertureKey(a.getMacro(), a.getValue()), a.getCode());
+            definedCodes.add(a.getCode());
+            nextApertureCode = Math.max(nextApertureCode, a.getCode() + 1);
+        }
+        var macros = layer.getMacros();
+        for (; indexedMacros < macros.size(); indexedMacros++) {
+            var m = (AM) macros.get(indexedMacros);
+            macroBodies.putIfAbsent(m.getName(), m.getBody());
+        }
+    }
+
     @Override
     public void add(Layer source, double xOffset, double yOffset) {
-        if (source instanceof Gerber g) {
-            var destinationFunction = layer.getTF(TF.FileFunction);
-            var sourceFunction = g.getTF(TF.FileFunction);
-            if ((destinationFunction == null) || destinationFunction.equals(g.getTF(TF.FileFunction))) {
-                log.log(Level.INFO, "Adding Gerber file {0} function {1}",
-                        new Object[]{source.getName(), sourceFunction});
-                if (destinationFunction == null) layer.add(new TF(TF.FileFunction, sourceFunction));
-
-                var macroSubstitutes = mergeMacros(g);
-                var apertureSubstitutes = mergeApertures(g, macroSubstitutes);
-                mergeCommands(g, apertureSubstitutes, xOffset, yOffset);
-            } else {
-                log.log(Level.WARNING, "Source and destination .FileFunction attrs differ, so they can't be merged");
+        if ((source instanceof Gerber g) && accepts(g)) {
+            layer.add(remap(g).commands().translated(xOffset, yOffset));
+        }
+    }
+
+    /**
+     * Starts a new layer to put segments into by place(). Sources placed
+     * before keep their macros and apertures, so they are not remapped again.
+     */
+    public final void begin() {
+        newLayer();
+        round++;
+    }
+
+    /**
+     * Puts the source with the offset into the layer as a segment of the
+     * placement id. Commands are not copied, the segment is a view of the
+     * source commands made again only if it is new or its offset has changed,
+     * so moving one placement costs the same whatever the number of the others.
+     */
+    public final void place(UUID id, Layer source, double xOffset, double yOffset) {
+        if ((source instanceof Gerber g) && accepts(g)) placeSegment(id, g, xOffset, yOffset);
+    }
+
+    /**
+     * Puts the source into the layer as place() does, inside a step
+     * and repeat block, so the copies of the block are not written.
+     */
+    public final void place(UUID id, Layer source, double xOffset, double yOffset, SR repeat) {
+        if (!(source instanceof Gerber g) || !accepts(g)) return;
+        layer.add(repeat);
+        placeSegment(id, g, xOffset, yOffset);
+        layer.add(new SR());
+    }
+
+    private void placeSegment(UUID id, Gerber g, double xOffset, double yOffset) {
+        var remap = remap(g);
+        var segment = segments.get(id);
+        if ((segment == null) || (segment.source != g)) {
+            segment = new Segment(g);
+            segments.put(id, segment);
+        }
+        if ((segment.commands == null) || (segment.xOffset != xOffset) || (segment.yOffset != yOffset)) {
+            // A new view, the layers given out before keep the old one
+            segment.commands = remap.commands().translated(xOffset, yOffset);
+            segment.xOffset = xOffset;
+            segment.yOffset = yOffset;
+        }
+        segment.round = round;
+        layer.add(segment.commands);
+    }
+
+    /**
+     * Forgets segments that were not placed since begin().
+     */
+    public final void end() {
+        segments.values().removeIf(s -> s.round != round);
+    }
+
+    private boolean accepts(Gerber source) {
+        var destinationFunction = layer.getTF(TF.FileFunction);
+        var sourceFunction = source.getTF(TF.FileFunction);
+        if ((destinationFunction != null) && !destinationFunction.equals(sourceFunction)) {
+            log.log(Level.WARNING, "Source and destination .FileFunction attrs differ, so they can't be merged");
+            return false;
+        }
+        log.log(Level.FINE, "Adding Gerber file {0} function {1}", new Object[]{source.getName(), sourceFunction});
+        if (destinationFunction == null) layer.add(new TF(TF.FileFunction, sourceFunction));
+        return true;
+    }
+
+    // Remaps the source once and puts its definitions into the layer once
+    private Remap remap(Gerber source) {
+        updateIndexes();
+        var remap = remaps.get(source);
+        if (remap == null) {
+            var definitions = new ArrayList<Command>();
+            var macroSubstitutes = mergeMacros(source, definitions);
+            var apertureSubstitutes = mergeApertures(source, macroSubstitutes, definitions);
+            remap = new Remap(definitions, source.getStore().view(0, 0, apertureSubstitutes));
+            remaps.put(source, remap);
+        }
+        if (defined.add(source)) {
+            for (var cmd : remap.definitions()) {
+                if ((cmd instanceof AM m) && !layer.hasMacro(m.getName())) {
+                    layer.add(m);
+                    indexedMacros++;
+                } else if ((cmd instanceof AD a) && definedCodes.add(a.getCode())) {
+                    layer.add(a);
+                    indexedApertures++;
+                }
             }
         }
+        return remap;
     }
 
-    private HashMap <String, String> mergeMacros(Gerber source) {
+    private HashMap <String, String> mergeMacros(Gerber source, List<Command> definitions) {
         log.log(Level.INFO, "Merging macros...");
         var substTable = new HashMap<String, String>();
         for (var cmd : source.getMacros()) {
             var m = (AM)cmd;
-            if (!layer.hasMacro(m.getName())) {
+            var body = m.getBody();
+            var destinationBody = macroBodies.get(m.getName());
+            if (destinationBody == null) {
                 log.log(Level.INFO, "Added macro {0}", new Object[] { m.getName() });
-                layer.add(cmd);
-            } else {
+                macroBodies.put(m.getName(), body);
+                definitions.add(m);
+            } else if (destinationBody.equals(body)) {
                 log.log(Level.INFO, "Skipped macro {0}", new Object[] { m.getName() });
-            }
-        }
-        return substTable;
-    }
-
-    private void mergeCommands(Gerber source, HashMap<Integer, Integer> apertureSubst, double xOffset, double yOffset) {
-        for (var cmd : source.getContents()) {
-            if (cmd instanceof D01To03 d) {
-                layer.add(d.move(xOffset, yOffset));
-            } else if (cmd instanceof DAperture a) {
-                if (apertureSubst.containsKey(a.getCode())) {
-                    layer.add(new DAperture(apertureSubst.get(a.getCode())));
-                } else {
-                    layer.add(cmd);
-                }
+                definitions.add(m);
             } else {
-                layer.add(cmd);
+                // Macro with the same name but other definition, it gets a new name
+                var key = m.getName() + "*" + body;
+                var name = renamedMacros.get(key);
+                if (name == null) {
+                    var n = 1;
+                    do { name = m.getName() + "_" + n++; } while (macroBodies.containsKey(name));
+                    log.log(Level.INFO, "Added macro {0} as {1}", new Object[] { m.getName(), name });
+                    macroBodies.put(name, body);
+                    renamedMacros.put(key, name);
+                }
+                definitions.add(m.rename(name));
+                substTable.put(m.getName(), name);
             }
         }
+        return substTable;
     }
 
-    private HashMap <Integer, Integer> mergeApertures(Gerber source, HashMap<String, String> macroSubst) {
+    private HashMap <Integer, Integer> mergeApertures(Gerber source, HashMap<String, String> macroSubst,
+                                                      List<Command> definitions) {
         log.log(Level.INFO, "Merging apertures...");
         var apertureMapping = new HashMap <Integer, Integer>();
         var sourceApertures = source.getApertures();
@@ -96,20 +254,22 @@ public class GerberMerger extends Merger {
         // If value and macro of an aperture is equal but code is different - then add it
         // to a substitute table if it's completely equal then remove from apertures
         // that are to be added into destination.
-        var apertureIndex = layer.getApertureLastIndex();
         for (var s : sourceApertures) {
             var sourceAperture = (AD)s;
-            var destinationAperture = findAperture((AD)s);
-            if (destinationAperture != null) {
+            var macro = macroSubst.getOrDefault(sourceAperture.getMacro(), sourceAperture.getMacro());
+            var key = new ApertureKey(macro, sourceAperture.getValue());
+            var destinationCode = apertureCodes.get(key);
+            if (destinationCode != null) {
                 log.log(Level.FINE, "Aperture substitution {0} -> {1}",
-                        new Object[] { sourceAperture.getCode(), destinationAperture.getCode() });
-                apertureMapping.put(sourceAperture.getCode(), destinationAperture.getCode());
+                        new Object[] { sourceAperture.getCode(), destinationCode });
+                definitions.add(new AD(destinationCode, macro, sourceAperture.getValue()));
             } else {
-                log.log(Level.FINE, "Aperture adding {0} -> {1}", new Object[] { sourceAperture.getCode(), apertureIndex });
-                layer.add(new AD(apertureIndex, sourceAperture.getMacro(), sourceAperture.getValue()));
-                apertureMapping.put(sourceAperture.getCode(), apertureIndex);
-                apertureIndex++;
+                destinationCode = nextApertureCode++;
+                log.log(Level.FINE, "Aperture adding {0} -> {1}", new Object[] { sourceAperture.getCode(), destinationCode });
+                definitions.add(new AD(destinationCode, macro, sourceAperture.getValue()));
+                apertureCodes.put(key, destinationCode);
             }
+            apertureMapping.put(sourceAperture.getCode(), destinationCode);
         }
 
         log.log(Level.INFO, "Processed {0} apertures", new Object[] { sourceApertures.size() });
@@ -117,22 +277,10 @@ public class GerberMerger extends Merger {
         return apertureMapping;
     }
 
-    private AD findAperture(AD aperture) {
-        var destinationApertures = layer.getApertures();
-        for (var d : destinationApertures) {
-            var destinationAperture = (AD)d;
-            if (aperture.getValue().equals(destinationAperture.getValue()) &&
-                aperture.getMacro().equals(destinationAperture.getMacro())) {
-                return destinationAperture;
-            }
-        }
-        return null;
-    }
-
+    // Header depends on the name only, so merging the same panel again gives the same file
     private void fillHeader(Layer.Type type, String name) {
         layer.add(new TF(TF.GenerationSoftware, "GerberMerger", "(1.0)"));
-        layer.add(new TF(TF.CreationDate, LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)));
-        layer.add(new TF(TF.ProjectId, name, UUID.randomUUID().toString()));
+        layer.add(new TF(TF.ProjectId, name, UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString()));
         layer.add(new TF(TF.SameCoordinates, "Original"));
         layer.add(new TF(TF.FilePolarity, "Positive"));
         layer.add(new TF(TF.FileFunction, layer.layerTypeFileFunction(type)));
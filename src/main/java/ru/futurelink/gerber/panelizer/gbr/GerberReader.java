@@ -9,24 +9,24 @@ import ru.futurelink.gerber.panelizer.gbr.cmd.l.*;
 import ru.futurelink.gerber.panelizer.gbr.cmd.t.*;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 public class GerberReader {
     private final InputStream stream;
 
     /**
-     * Parser state variables
+     * Tokenizer state: a window over the input characters. Commands are
+     * processed as index slices of this window, the window is compacted and
+     * refilled when a command crosses its end.
      */
-    enum State { NONE, COMMAND, GCODE, DCODE }
-    private State state;
-    private StringBuilder buffer;
-    private String prevBuffer;
-
-    private final Pattern XYDRegex = Pattern.compile(
-            "([XYIJ]-?\\d+)([XYIJ]-?\\d+)([XYIJ]-?\\d+)?([XYIJ]-?\\d+)?D(0?[1-3])\\*?"
-    );
+    private final static int bufferSize = 64 * 1024;
+    private Reader reader;
+    private char[] buffer;
+    private int position;
+    private int limit;
 
     private final static Logger log = Logger.getLogger("GerberReader");
 
@@ -36,7 +36,6 @@ public class GerberReader {
     }
 
     public GerberReader(InputStream stream) {
-        this.state = State.NONE;
         this.stream = stream;
     }
 
@@ -45,73 +44,30 @@ public class GerberReader {
      * @param name gerber instance name
      */
     public final Gerber read(String name) throws IOException, GerberException {
-        buffer = new StringBuilder();
         var gerber = new Gerber(name);
         var cmdCount = 0;
-        var reader = new BufferedReader(new InputStreamReader(new BufferedInputStream((stream))));
-        while (reader.ready()) {
-            var line = reader.readLine();
-
-            // Parse line char-by-char
-            int i = 0;
-            int l = line.length();
-            while (i < l) {
-                var chr = line.charAt(i);
-                if (chr == '%') {
-                    if (this.state == State.NONE) {
-                        this.state = State.COMMAND;        // Start command
-                    } else {
-                        this.state = State.NONE;           // Close command
-                        processCmd(gerber);
-                        cmdCount++;
-                    }
-                    this.prevBuffer = buffer.toString();
-                    this.buffer = new StringBuilder();
-                } else if (chr == 'G') {
-                    if (this.state == State.NONE) {
-                        this.state = State.GCODE;          // Start G-Code
-                        this.prevBuffer = buffer.toString();
-                        this.buffer = new StringBuilder();
-                    } else {
-                        buffer.append(chr);
-                    }
-                } else if (chr == 'D') {
-                    if (this.state == State.NONE) {
-                        this.state = State.DCODE;          // Start D-Code
-                        this.prevBuffer = buffer.toString();
-                        this.buffer = new StringBuilder();
-                    } else {
-                        buffer.append(chr);
-                    }
-                } else if (chr == '*') {                    // Symbol '*' closes D- and G-Codes
-                    if (this.state == State.GCODE) {
-                        processGCode(gerber);
-                        this.state = State.NONE;
-                        this.prevBuffer = buffer.toString();
-                        this.buffer = new StringBuilder();
-                        cmdCount++;
-                    } else if (this.state == State.DCODE) {
-                        // If there's something in buffer then we consider it a XYD command,
-                        // otherwise it's separate D command (aperture selection).
-                        if (prevBuffer.isEmpty()) {
-                            processDCode(gerber);
-                        } else {
-                            processXYD(gerber);
-                        }
-                        this.state = State.NONE;
-                        this.prevBuffer = buffer.toString();
-                        this.buffer = new StringBuilder();
-                        cmdCount++;
-                    } else {
-                        buffer.append(chr);
-                    }
-                } else {
-                    buffer.append(chr);
-                }
-                i++;
+        reader = new InputStreamReader(stream, StandardCharsets.UTF_8);
+        buffer = new char[bufferSize];
+        position = limit = 0;
+        while ((position < limit) || fill()) {
+            var chr = buffer[position];
+            if ((chr == '\n') || (chr == '\r') || (chr == ' ') || (chr == '\t')) {
+                position++;                             // Skip separators between commands
+            } else if (chr == '%') {
+                var end = indexOf('%', position + 1);   // Extended command %...%
+                if (end < 0) break;
+                processCmd(gerber, extendedCommand(position + 1, end));
+                position = end + 1;
+                cmdCount++;
+            } else {
+                var end = indexOf('*', position);       // Word command closed by '*'
+                if (end < 0) break;
+                processWord(gerber, position, end);
+                position = end + 1;
+                cmdCount++;
             }
-            if (!buffer.isEmpty()) buffer.append('\n');
         }
+        buffer = null;
         log.log(Level.INFO, "File read, {0} commands", new Object[] { cmdCount });
         log.log(Level.INFO, "Gerber size is {0} x {1}", new Object[] { gerber.getWidth(), gerber.getHeight() });
         log.log(Level.INFO, "Min is {0} x {1} max is {2} x {3}",
@@ -119,12 +75,68 @@ public class GerberReader {
         return gerber;
     }
 
+    /**
+     * Compacts the window so that unprocessed characters start at 0, then reads
+     * more characters from the stream, growing the window if it is full.
+     * @return false if the end of the stream is reached
+     */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        var n = reader.read(buffer, limit, buffer.length - limit);
+        if (n < 0) return false;
+        limit += n;
+        return true;
+    }
+
+    /**
+     * Finds the character in the window starting from specified index, reads
+     * more characters if needed.
+     * @return index of the character or -1 if the end of the stream is reached
+     */
+    private int indexOf(char chr, int from) throws IOException {
+        var i = from;
+        while (true) {
+            while (i < limit) {
+                if (buffer[i] == chr) return i;
+                i++;
+            }
+            var shift = position;
+            if (!fill()) return -1;
+            i -= shift;
+        }
+    }
+
+    private String extendedCommand(int start, int end) {
+        var builder = new StringBuilder(end - start);
+        for (var i = start; i < end; i++) {
+            if (buffer[i] != '\r') builder.append(buffer[i]);
+        }
+        return builder.toString();
+    }
+
+    private void processWord(Gerber gerber, int start, int end) throws GerberException {
+        var chr = buffer[start];
+        if (chr == 'G') {
+            processGCode(gerber, start + 1, end);
+        } else if (chr == 'D') {
+            processDCode(gerber, start + 1, end);
+        } else {
+            processXYD(gerber, start, end);
+        }
+    }
+
     private boolean hasAperture(Integer number) {
         return true;
     }
 
-    private void processDCode(Gerber gerber) throws GerberException {
-        var dCmd = Integer.parseInt(buffer.toString());
+    private void processDCode(Gerber gerber, int start, int end) throws GerberException {
+        var dCmd = parseCode(start, end);
+        if (dCmd < 0) throw new GerberException("Invalid aperture code");
         if (hasAperture(dCmd)) {
             gerber.add(new DAperture(dCmd));
         } else {
@@ -132,38 +144,71 @@ public class GerberReader {
         }
     }
 
-    private void processXYD(Gerber gerber) throws GerberException {
-        if (gerber.getFS() == null) throw new GerberException("Gerber format (%FS) is not set, can't process");
-        var dCmd = Integer.parseInt(buffer.toString());
-        var cmd = this.prevBuffer;
-        var matcher = XYDRegex.matcher(cmd + "D" + dCmd);
-        if (matcher.matches()) {
-            if ((dCmd >= 1) && (dCmd <= 3)) {
-                String x = null, y = null, i = null, j = null;
-                for (var n = 1; n < matcher.groupCount(); n++) {
-                    var grp = matcher.group(n);
-                    if (grp != null) {
-                        switch (grp.charAt(0)) {
-                            case 'X' -> x = grp.substring(1);
-                            case 'Y' -> y = grp.substring(1);
-                            case 'I' -> i = grp.substring(1);
-                            case 'J' -> j = grp.substring(1);
-                        }
-                    }
-                }
-                if ((x != null) && (y != null)) {
-                    gerber.add(new D01To03(dCmd, x, y, i, j, gerber.getFS()));
+    private void processXYD(Gerber gerber, int start, int end) throws GerberException {
+        var dIndex = start;
+        while ((dIndex < end) && (buffer[dIndex] != 'D')) dIndex++;
+        if (dIndex == end) return;      // Not a D-command, e.g. M02
+
+        var format = gerber.getFS();
+        if (format == null) throw new GerberException("Gerber format (%FS) is not set, can't process");
+
+        // Coordinates are kept as slices of the window until the command is complete
+        int xStart = -1, xEnd = 0, yStart = -1, yEnd = 0, iStart = -1, iEnd = 0, jStart = -1, jEnd = 0;
+        var fields = 0;
+        var n = start;
+        while (n < dIndex) {
+            var axis = buffer[n++];
+            var valueStart = n;
+            if ((n < dIndex) && ((buffer[n] == '-') || (buffer[n] == '+'))) n++;
+            var digitsStart = n;
+            while ((n < dIndex) && (buffer[n] >= '0') && (buffer[n] <= '9')) n++;
+            if (n == digitsStart) return;   // Malformed coordinate, skip command
+            if (n - digitsStart > D01To03.maxDigits) throw new GerberException("Coordinate value is too long");
+            switch (axis) {
+                case 'X' -> { xStart = valueStart; xEnd = n; }
+                case 'Y' -> { yStart = valueStart; yEnd = n; }
+                case 'I' -> { iStart = valueStart; iEnd = n; }
+                case 'J' -> { jStart = valueStart; jEnd = n; }
+                default -> { return; }      // Unknown coordinate, skip command
+            }
+            fields++;
+        }
+        if ((fields < 2) || (fields > 4)) return;
+
+        var dCmd = parseCode(dIndex + 1, end);
+        if ((dCmd >= 1) && (dCmd <= 3) && (end - dIndex <= 3)) {
+            if ((xStart >= 0) && (yStart >= 0)) {
+                var x = D01To03.parseX(buffer, xStart, xEnd, format);
+                var y = D01To03.parseY(buffer, yStart, yEnd, format);
+                if ((iStart >= 0) || (jStart >= 0)) {
+                    gerber.add(dCmd, x, y,
+                            (iStart >= 0) ? D01To03.parseX(buffer, iStart, iEnd, format) : null,
+                            (jStart >= 0) ? D01To03.parseY(buffer, jStart, jEnd, format) : null);
                 } else {
-                    throw new GerberException("Invalid value for D[1-3] - no X or Y coordinates that are mandatory");
+                    gerber.add(dCmd, x, y);
                 }
             } else {
-                throw new GerberException("Invalid value for D[1-3]");
+                throw new GerberException("Invalid value for D[1-3] - no X or Y coordinates that are mandatory");
             }
         }
     }
 
-    private void processCmd(Gerber gerber) {
-        var cmd = this.buffer.toString();
+    /**
+     * Parses unsigned decimal code from the window slice.
+     * @return code or -1 if the slice is empty or not a number
+     */
+    private int parseCode(int start, int end) {
+        if ((start == end) || (end - start > 9)) return -1;
+        var code = 0;
+        for (var i = start; i < end; i++) {
+            var chr = buffer[i];
+            if ((chr < '0') || (chr > '9')) return -1;
+            code = code * 10 + (chr - '0');
+        }
+        return code;
+    }
+
+    private void processCmd(Gerber gerber, String cmd) {
         if (cmd.startsWith("TF")) {
             gerber.add(TF.fromString(cmd));
         } else if (cmd.startsWith("MO")) {
@@ -185,20 +230,17 @@ public class GerberReader {
         }
     }
 
-    private  void processGCode(Gerber gerber) {
-        var cmd = this.buffer.toString();
-        if (cmd.startsWith("04") || // This is a comment, so may be 'G04 Some text*'
-                cmd.equals("01") || // Others are exact Gxx*
-                cmd.equals("02") ||
-                cmd.equals("03") ||
-                cmd.equals("36") ||
-                cmd.equals("37") ||
-                cmd.equals("75") ||
-                cmd.equals("76")
-        ) {
-            var code = cmd.substring(0, 2);
-            var param = cmd.substring(2);
-            gerber.add(new GCode(Integer.parseInt(code), param));
+    private void processGCode(Gerber gerber, int start, int end) {
+        if ((end - start < 2) ||
+                (buffer[start] < '0') || (buffer[start] > '9') ||
+                (buffer[start + 1] < '0') || (buffer[start + 1] > '9')) return;
+        var code = (buffer[start] - '0') * 10 + (buffer[start + 1] - '0');
+        if (code == 4) {    // This is a comment, so may be 'G04 Some text*'
+            gerber.add(new GCode(code, new String(buffer, start + 2, end - start - 2)));
+        } else if (end - start == 2) {  // Others are exact Gxx*
+            switch (code) {
+                case 1, 2, 3, 36, 37, 75, 76 -> gerber.add(new GCode(code, ""));
+            }
         }
     }
 }
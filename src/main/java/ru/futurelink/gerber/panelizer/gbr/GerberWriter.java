@@ -1,5 +1,6 @@
 package ru.futurelink.gerber.panelizer.gbr;
 
+import ru.futurelink.gerber.panelizer.AsciiOutput;
 import ru.futurelink.gerber.panelizer.exceptions.GerberException;
 import ru.futurelink.gerber.panelizer.gbr.cmd.d.D01To03;
 
@@ -18,33 +19,35 @@ public class GerberWriter {
     public void write(Gerber gerber) throws IOException, GerberException {
         if (gerber.getFS() == null) throw new GerberException("Undefined format (FS command is not given)");
 
-        var writer = new BufferedWriter(new OutputStreamWriter(stream));
+        var writer = new AsciiOutput(stream);
         // write header
         for (var cmd : gerber.getHeader()) {
             writer.write(cmd.toString());
-            writer.write("\n");
+            writer.write('\n');
         }
 
         // write macro definitions
         for (var cmd : gerber.getMacros()) {
             writer.write(cmd.toString());
-            writer.write("\n");
+            writer.write('\n');
         }
 
         // write apertures dictionary
         for (var cmd : gerber.getApertures()) {
             writer.write(cmd.toString());
-            writer.write("\n");
+            writer.write('\n');
         }
 
         // then other commands
-        for (var cmd : gerber.getContents()) {
-            if (cmd instanceof D01To03) {
-                writer.write(((D01To03)cmd).toString(gerber.getFS()));
-            } else {
-                writer.write(cmd.toString());
+        var format = gerber.getFS();
+        var c = gerber.contents();
+        while (c.next()) {
+            switch (c.getOpcode()) {
+                case CommandStore.DRAW, CommandStore.MOVE, CommandStore.FLASH ->
+                        D01To03.write(writer, format, c.getCode(), c.getX(), c.getY(), c.getI(), c.getJ());
+                default -> writer.write(c.getCommand().toString());
             }
-            writer.write("\n");
+            writer.write('\n');
         }
         writer.flush();
         log.log(Level.INFO, "Written Gerber to stream");
@@ -4,6 +4,7 @@ import lombok.Getter;
 
 public class FS extends Command {
     @Getter private final Boolean OmitLeadingZeroes;
+    @Getter private final Boolean OmitTrailingZeroes;
     @Getter private final Boolean AbsoluteCoords;
     @Getter private Integer XInteger;
     @Getter private Integer XFractional;
@@ -11,7 +12,12 @@ public class FS extends Command {
     @Getter private Integer YFractional;
 
     public FS(Boolean omitLeadingZeroes, Boolean absoluteCoords) {
+        this(omitLeadingZeroes, false, absoluteCoords);
+    }
+
+    public FS(Boolean omitLeadingZeroes, Boolean omitTrailingZeroes, Boolean absoluteCoords) {
         OmitLeadingZeroes = omitLeadingZeroes;
+        OmitTrailingZeroes = omitTrailingZeroes && !omitLeadingZeroes;
         AbsoluteCoords = absoluteCoords;
         XInteger = 4;
         XFractional = 6;
@@ -21,7 +27,7 @@ public class FS extends Command {
 
     static public FS fromString(String str) {
         var t = str.substring(2).replace("*","");
-        var cmd = new FS(t.contains("L"), t.contains("A"));
+        var cmd = new FS(t.contains("L"), t.contains("T"), t.contains("A"));
 
         var x =  t.substring(t.indexOf("X") + 1, t.indexOf("X") + 3);
         cmd.XInteger = Integer.parseInt(x.substring(0,1));
@@ -37,7 +43,7 @@ public class FS extends Command {
     @Override
     public String toString() {
         return "%" + getCommand() +
-                (OmitLeadingZeroes ? "L" : "") +
+                (OmitLeadingZeroes ? "L" : OmitTrailingZeroes ? "T" : "") +
                 (AbsoluteCoords ? "A" : "") +
                 "X" + XInteger + XFractional +
                 "Y" + YInteger + YFractional +
@@ -0,0 +1,37 @@
+package ru.futurelink.gerber.panelizer.gbr.cmd;
+
+import lombok.Getter;
+
+import java.util.Locale;
+
+/**
+ * Step and repeat. Opens a block that is repeated X by Y times with
+ * steps I and J, SR without parameters closes the block.
+ */
+public class SR extends Command {
+    @Getter private final int xRepeat;
+    @Getter private final int yRepeat;
+    @Getter private final double xStep;
+    @Getter private final double yStep;
+    @Getter private final boolean open;
+
+    public SR() {
+        this.xRepeat = this.yRepeat = 1;
+        this.xStep = this.yStep = 0;
+        this.open = false;
+    }
+
+    public SR(int xRepeat, int yRepeat, double xStep, double yStep) {
+        this.xRepeat = xRepeat;
+        this.yRepeat = yRepeat;
+        this.xStep = xStep;
+        this.yStep = yStep;
+        this.open = true;
+    }
+
+    @Override
+    public String toString() {
+        if (!open) return super.toString();
+        return String.format(Locale.ROOT, "%%%sX%dY%dI%.6fJ%.6f*%%", getCommand(), xRepeat, yRepeat, xStep, yStep);
+    }
+}
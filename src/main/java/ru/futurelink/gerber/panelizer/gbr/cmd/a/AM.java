@@ -21,6 +21,27 @@ public class AM extends CommandNamed {
         return Blocks.iterator();
     }
 
+    /**
+     * Macro definition without comment primitives, to compare macros.
+     */
+    public String getBody() {
+        var builder = new StringBuilder();
+        for (var block : this.Blocks) {
+            if (block.startsWith("0 ") || block.equals("0")) continue;
+            builder.append(block.trim()).append("*");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Same macro with other name.
+     */
+    public AM rename(String name) {
+        var am = new AM(name);
+        am.Blocks.addAll(this.Blocks);
+        return am;
+    }
+
     static public AM fromString(String str) {
         var t = str.substring(2).replace("\n", "");
         var blocks = t.split("\\*");
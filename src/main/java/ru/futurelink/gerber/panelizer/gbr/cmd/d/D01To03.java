@@ -1,11 +1,23 @@
 package ru.futurelink.gerber.panelizer.gbr.cmd.d;
 
 import lombok.Getter;
+import ru.futurelink.gerber.panelizer.AsciiOutput;
 import ru.futurelink.gerber.panelizer.gbr.cmd.FS;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 
 public class D01To03 extends DAperture {
+    public final static int maxDigits = 18;      // Longest coordinate that fits into long
+    private final static long maxExactValue = 1L << 53;
+    private final static double[] powersOfTen = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     @Getter private final double x;
     @Getter private final double y;
 
@@ -29,33 +41,128 @@ public class D01To03 extends DAperture {
     }
 
     public D01To03(Integer code, String x, String y, FS format) {
-        this(code, parse(x, format.getXFractional()), parse(y, format.getYFractional()));
+        this(code, parseX(x, format), parseY(y, format));
     }
 
     public D01To03(Integer code, String x, String y, String i, String j, FS format) {
-        this(code,
-                parse(x, format.getXFractional()),
-                parse(y, format.getYFractional()),
-                parse(i, format.getXFractional()),
-                parse(j, format.getYFractional())
-        );
+        this(code, parseX(x, format), parseY(y, format), parseX(i, format), parseY(j, format));
     }
 
-    private static Double parse(String val, int fractionalLen) {
+    private static Double parseX(String val, FS format) {
         if (val == null) return null;
-        return BigDecimal.valueOf(Double.parseDouble(val)).movePointLeft(fractionalLen).doubleValue();
+        return parseX(val.toCharArray(), 0, val.length(), format);
     }
 
-    public D01To03 move(double xOffset, double yOffset) {
-        return new D01To03(this.getCode(), this.x + xOffset, this.y + yOffset, i, j);
+    private static Double parseY(String val, FS format) {
+        if (val == null) return null;
+        return parseY(val.toCharArray(), 0, val.length(), format);
+    }
+
+    /**
+     * Parses X (or I) coordinate from characters [start, end) according to the format.
+     */
+    public static double parseX(char[] chars, int start, int end, FS format) {
+        return parse(chars, start, end,
+                format.getXInteger(), format.getXFractional(), format.getOmitTrailingZeroes());
+    }
+
+    /**
+     * Parses Y (or J) coordinate from characters [start, end) according to the format.
+     */
+    public static double parseY(char[] chars, int start, int end, FS format) {
+        return parse(chars, start, end,
+                format.getYInteger(), format.getYFractional(), format.getOmitTrailingZeroes());
+    }
+
+    /**
+     * Parses signed fixed point coordinate directly from its digits. The digits are
+     * accumulated into an integer, which is then divided by a power of ten. Both
+     * operands are exact doubles, so the result is the correctly rounded value of
+     * the decimal, the same as BigDecimal gives.
+     * @param integerLen count of integer digits in the format
+     * @param fractionalLen count of fractional digits in the format
+     * @param omitTrailingZeroes digits are aligned to the left (trailing zeroes omitted),
+     *                           otherwise to the right (leading zeroes omitted)
+     */
+    public static double parse(char[] chars, int start, int end,
+                               int integerLen, int fractionalLen, boolean omitTrailingZeroes) {
+        var i = start;
+        var negative = false;
+        if ((i < end) && ((chars[i] == '-') || (chars[i] == '+'))) {
+            negative = (chars[i] == '-');
+            i++;
+        }
+        var digits = end - i;
+        if ((digits <= 0) || (digits > maxDigits)) {
+            throw new NumberFormatException("Invalid coordinate " + new String(chars, start, end - start));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            var d = chars[i] - '0';
+            if ((d < 0) || (d > 9)) {
+                throw new NumberFormatException("Invalid coordinate " + new String(chars, start, end - start));
+            }
+            value = value * 10 + d;
+        }
+        if (negative) value = -value;
+
+        // With trailing zeroes omitted the digits are the leftmost digits of the number
+        var scale = omitTrailingZeroes ? fractionalLen - (integerLen + fractionalLen - digits) : fractionalLen;
+        if ((Math.abs(value) > maxExactValue) || (scale >= powersOfTen.length) || (-scale >= powersOfTen.length)) {
+            return BigDecimal.valueOf(value, scale).doubleValue();
+        }
+        return (scale >= 0) ? value / powersOfTen[scale] : value * powersOfTen[-scale];
     }
 
     public String toString(FS format) {
-        var xStr = BigDecimal.valueOf(x).movePointRight(format.getXFractional()).toBigInteger();
-        var yStr = BigDecimal.valueOf(y).movePointRight(format.getYFractional()).toBigInteger();
-        var iStr = ((i != null) ? "I" + BigDecimal.valueOf(i).movePointRight(format.getXFractional()).toBigInteger() : "");
-        var jStr = ((j != null) ? "J" + BigDecimal.valueOf(j).movePointRight(format.getYFractional()).toBigInteger() : "");
-        return String.format("X%sY%s%s%sD%02d", xStr, yStr, iStr, jStr, getCode()) + "*" ;
+        return toString(format, getCode(), x, y, i, j);
+    }
+
+    /**
+     * Formats D01-D03 command without having its object.
+     */
+    public static String toString(FS format, int code, double x, double y, Double i, Double j) {
+        var bytes = new ByteArrayOutputStream(64);
+        try {
+            var out = new AsciiOutput(bytes);
+            write(out, format, code, x, y, i, j);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes D01-D03 command to the output. Coordinates are rounded to the
+     * nearest value of the format, halves away from zero, and padded with
+     * zeroes unless the format omits them.
+     */
+    public static void write(AsciiOutput out, FS format, int code, double x, double y, Double i, Double j)
+            throws IOException {
+        out.write('X');
+        writeX(out, format, x);
+        out.write('Y');
+        writeY(out, format, y);
+        if (i != null) {
+            out.write('I');
+            writeX(out, format, i);
+        }
+        if (j != null) {
+            out.write('J');
+            writeY(out, format, j);
+        }
+        out.write('D').write(code, 2).write('*');
+    }
+
+    private static void writeX(AsciiOutput out, FS format, double value) throws IOException {
+        out.writeFixed(AsciiOutput.scale(value, format.getXFractional()), format.getXInteger() + format.getXFractional(),
+                format.getOmitLeadingZeroes(), format.getOmitTrailingZeroes());
+    }
+
+    private static void writeY(AsciiOutput out, FS format, double value) throws IOException {
+        out.writeFixed(AsciiOutput.scale(value, format.getYFractional()), format.getYInteger() + format.getYFractional(),
+                format.getOmitLeadingZeroes(), format.getOmitTrailingZeroes());
     }
 
     @Override
@@ -0,0 +1,114 @@
+package ru.futurelink.gerber.panelizer.gui;
+
+import io.qt.core.QPointF;
+import io.qt.core.QRectF;
+import io.qt.core.Qt;
+import io.qt.gui.QPainterPath;
+import io.qt.gui.QPolygonF;
+import ru.futurelink.gerber.panelizer.canvas.Aperture;
+import ru.futurelink.gerber.panelizer.canvas.Macro;
+
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shapes of apertures in screen units centered at zero, built once for
+ * the scale, so a flash only moves the painter to its point. The shapes
+ * are kept by aperture objects, so the cache is cleared when apertures
+ * or macros are loaded again, and when the scale changes.
+ */
+public class ApertureShapeCache {
+    private final HashMap<Aperture, QPainterPath> shapes = new HashMap<>();
+    private double scale;
+
+    private final static Logger log = Logger.getLogger("ApertureShapeCache");
+
+    public final QPainterPath get(Aperture a, HashMap<String, Macro> macros, double scale) {
+        if (scale != this.scale) {
+            clear();
+            this.scale = scale;
+        }
+        var shape = shapes.get(a);
+        if (shape == null) {
+            shape = build(a, macros, scale);
+            shapes.put(a, shape);
+        }
+        return shape;
+    }
+
+    public final void clear() {
+        if (!shapes.isEmpty()) log.log(Level.FINE, "Clearing {0} aperture shapes", shapes.size());
+        shapes.clear();
+    }
+
+    private static QPainterPath build(Aperture a, HashMap<String, Macro> macros, double scale) {
+        var path = new QPainterPath();
+        path.setFillRule(Qt.FillRule.WindingFill);
+        switch (a.getMacro()) {
+            case "C" -> {   // Circle
+                var radius = a.getValues()[0] / scale / 2;
+                path.addEllipse(new QPointF(0, 0), radius, radius);
+            }
+            case "O" ->     // Oval
+                    path.addEllipse(new QPointF(0, 0), a.getValues()[0] / scale / 2, a.getValues()[1] / scale / 2);
+
+            case "R" -> {   // Rectangle
+                var rx = a.getValues()[0] / scale / 2;
+                var ry = a.getValues()[1] / scale / 2;
+                path.addRect(new QRectF(-rx, -ry, rx * 2, ry * 2));
+            }
+            default -> {    // Macro name
+                var macro = (macros != null) ? macros.get(a.getMacro()) : null;
+                if (macro != null) path = buildMacro(macro, a.getValues(), scale);
+            }
+        }
+        return path;
+    }
+
+    private static QPainterPath buildMacro(Macro macro, double[] measures, double scale) {
+        var path = new QPainterPath();
+        path.setFillRule(Qt.FillRule.WindingFill);
+        for (var r : macro.eval(measures)) {
+            if (r.getType() == null) continue;
+            var primitive = new QPainterPath();
+            primitive.setFillRule(Qt.FillRule.WindingFill);
+            switch (r.getType()) {
+                case Circle -> {
+                    var dia = r.getValue(0) / scale / 2;
+                    primitive.addEllipse(new QPointF(r.getValue(1) / scale, -r.getValue(2) / scale), dia, dia);
+                }
+                case Outline -> {
+                    var poly = new QPolygonF();
+                    for (var i = 0; i < r.getValue(0) * 2; i+=2) {
+                        poly.append(new QPointF(r.getValue(i+1) / scale, -r.getValue(i+2) / scale));
+                    }
+                    primitive.addPolygon(poly);
+                    primitive.closeSubpath();
+                }
+                case VectorLine -> {
+                    // Line of the width with square ends
+                    var x1 = r.getValue(1) / scale;
+                    var y1 = -r.getValue(2) / scale;
+                    var x2 = r.getValue(3) / scale;
+                    var y2 = -r.getValue(4) / scale;
+                    var length = Math.hypot(x2 - x1, y2 - y1);
+                    if (length == 0) continue;
+                    var nx = -(y2 - y1) / length * r.getValue(0) / scale / 2;
+                    var ny = (x2 - x1) / length * r.getValue(0) / scale / 2;
+                    var poly = new QPolygonF();
+                    poly.append(new QPointF(x1 + nx, y1 + ny));
+                    poly.append(new QPointF(x2 + nx, y2 + ny));
+                    poly.append(new QPointF(x2 - nx, y2 - ny));
+                    poly.append(new QPointF(x1 - nx, y1 - ny));
+                    primitive.addPolygon(poly);
+                    primitive.closeSubpath();
+                }
+                default -> { continue; }
+            }
+            // Primitives with exposure off clear the shape made before them
+            path = r.getExposure() ? path.united(primitive) : path.subtracted(primitive);
+        }
+        return path;
+    }
+}
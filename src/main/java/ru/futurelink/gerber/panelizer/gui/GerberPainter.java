@@ -13,23 +13,32 @@ import ru.futurelink.gerber.panelizer.canvas.fetaures.Feature;
 import ru.futurelink.gerber.panelizer.canvas.fetaures.RoundFeature;
 import ru.futurelink.gerber.panelizer.drl.Excellon;
 import ru.futurelink.gerber.panelizer.gbr.Gerber;
-import ru.futurelink.gerber.panelizer.gbr.cmd.d.D01To03;
-import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
-import ru.futurelink.gerber.panelizer.gbr.cmd.g.GCode;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 
 public class GerberPainter extends QPainter {
     @Getter private final double scale;
     @Getter private final QPointF center;
     private final ColorSettings colorSettings = ColorSettings.getInstance();
-    private final static double arcQ = 2880 / Math.PI;
+    private final ApertureShapeCache shapes;
+    private final RenderCache renderCache;
+    private final int width, height;
+    // Layers smaller than this on screen are drawn as their bounding boxes
+    private final static int lodPixels = 12;
 
     public GerberPainter(QWidget parent, double scale, QPointF center) {
+        this(parent, scale, center, new ApertureShapeCache(), new RenderCache());
+    }
+
+    public GerberPainter(QWidget parent, double scale, QPointF center,
+                         ApertureShapeCache shapes, RenderCache renderCache) {
         super(parent);
         this.scale = scale;
         this.center = center;
+        this.shapes = shapes;
+        this.renderCache = renderCache;
+        this.width = parent.width();
+        this.height = parent.height();
     }
 
     public void drawAxis(QPointF center, int width, int height) {
@@ -125,160 +134,145 @@ public class GerberPainter extends QPainter {
         }
     }
 
+    /**
+     * Draws the layer recorded in render cache, layer coordinates are mapped
+     * to the screen by painter transform, so lines are not recalculated.
+     * Parts out of the widget are skipped, small layers are drawn as boxes.
+     */
     public final void drawGerber(Gerber g,
                                  final QPointF offset,
                                  final HashMap<Integer, Aperture> apertures,
                                  final HashMap<String, Macro> macros,
                                  QPen pen) {
-        Aperture currentAperture = null;
-        var currentInterpolation = Geometry.Interpolation.LINEAR;
-        var currentPoint = new QPointF(0, 0);
-        var polygonMode = false;
-        var polygonPoints = new ArrayList<QPointF>();
+        var recorded = renderCache.get(g, apertures);
+        var bounds = recorded.getBounds();
+        var hasPen = pen.style() != Qt.PenStyle.NoPen;
+        var hasFill = !recorded.getRegions().isEmpty() || ((apertures != null) && !recorded.getFlashes().isEmpty());
+        if (bounds.isEmpty() || (!hasPen && !hasFill)) return;
+
+        // Visible area in layer coordinates
+        var ox = (offset != null) ? offset.x() : 0;
+        var oy = (offset != null) ? offset.y() : 0;
+        var x0 = -center.x() - ox;
+        var x1 = width * scale - center.x() - ox;
+        var y0 = center.y() - height * scale - oy;
+        var y1 = center.y() - oy;
+        if (!bounds.intersects(x0, y0, x1, y1, recorded.getMargin() + scale * 2)) return;
+
+        if ((bounds.width() / scale < lodPixels) && (bounds.height() / scale < lodPixels)) {
+            setPen(new QPen(pen.color(), 0));
+            setBrush(Qt.BrushStyle.NoBrush);
+            drawRect(new QRectF(
+                    (bounds.getMinX() + ox + center.x()) / scale,
+                    -(bounds.getMaxY() + oy - center.y()) / scale,
+                    Math.max(bounds.width() / scale, 1), Math.max(bounds.height() / scale, 1)));
+            setPen(Qt.PenStyle.NoPen);
+            return;
+        }
+
         var brush = new QBrush(pen.color());
+        save();
+        translate(center.x() / scale, center.y() / scale);
+        scale(1 / scale, -1 / scale);
+        if (offset != null) translate(offset.x(), offset.y());
 
-        setPen(Qt.PenStyle.NoPen);
         setBrush(Qt.BrushStyle.NoBrush);
-
-        for (var cmd : g.getContents()) {
-            if (cmd instanceof D01To03 d) {
-                var p = new QPointF(d.getX(), d.getY());
-                switch (d.getCode()) {
-                    case 1:
-                        if (currentInterpolation == Geometry.Interpolation.LINEAR) {
-                            if (polygonMode) {
-                                polygonPoints.add(translatedPoint(p, offset));
-                            } else {
-                                setPen(pen);
-                                drawApertureLine(translatedPoint(currentPoint, offset), translatedPoint(p, offset), currentAperture);
-                                setPen(Qt.PenStyle.NoPen);
-                            }
-                        } else {
-                            setPen(pen);
-                            drawApertureArc(currentPoint, p, currentInterpolation, offset, currentAperture, d);
-                            setPen(Qt.PenStyle.NoPen);
-                        }
-                        break;
-                    case 3:
-                        if (apertures != null) {
-                            setBrush(brush);
-                            drawAperture(translatedPoint(p, offset), currentAperture, macros);
-                            setBrush(Qt.BrushStyle.NoBrush);
-                        }
-                        break;
-                    default: break;
+        if (hasPen) {
+            Aperture aperture = null;
+            QPen strokePen = null;
+            for (var stroke : recorded.getStrokes()) {
+                if ((strokePen == null) || (stroke.getAperture() != aperture)) {
+                    aperture = stroke.getAperture();
+                    strokePen = strokePen(pen, aperture);
                 }
-                currentPoint = p;
-            } else if (cmd instanceof GCode gcode) {
-                if (gcode.getCode() <= 3) {
-                    currentInterpolation = switch (gcode.getCode()) {
-                        case 1 -> Geometry.Interpolation.LINEAR;
-                        case 2 -> Geometry.Interpolation.CW;
-                        case 3 -> Geometry.Interpolation.CCW;
-                        default -> null;
-                    };
-                } else if (gcode.getCode() == 36) {
-                    polygonPoints.clear();
-                    polygonMode = true;
-                } else if (gcode.getCode() == 37) {
-                    if (polygonMode) {
-                        setBrush(brush);
-                        drawPolygon(polygonPoints.toArray(QPointF[]::new));
-                        setBrush(Qt.BrushStyle.NoBrush);
-                        polygonMode = false;
-                    }
-                }
-            } else if ((apertures != null) && (cmd instanceof DAperture a)) {
-                currentAperture = apertures.get(a.getCode());
+                var margin = Math.max(strokePen.widthF(), 1) * (strokePen.isCosmetic() ? scale : 1);
+                if (!stroke.getBounds().intersects(x0, y0, x1, y1, margin)) continue;
+                setPen(strokePen);
+                drawPath(stroke.getPath());
             }
         }
-    }
-
-    public void drawApertureArc(QPointF currentPoint, QPointF point, Geometry.Interpolation interpolation, QPointF offset, Aperture aperture, D01To03 d) {
-        var arcC = new QPointF(currentPoint.x() + d.getI(), currentPoint.y() + d.getJ());
-        var radius = Math.sqrt(Math.pow(currentPoint.x() - arcC.x(), 2) + Math.pow(currentPoint.y() - arcC.y(), 2));
-        var ang1 = Math.atan2(currentPoint.y() - arcC.y(), currentPoint.x() - arcC.x());
-        var ang2 = Math.atan2(point.y() - arcC.y(), point.x() - arcC.x());
-        if ((interpolation == Geometry.Interpolation.CCW) && (ang2 < 0)) ang2 = ang2 + 2 * Math.PI;
-        var arcRect = new QRectF(
-                (arcC.x() - radius + center.x() + ((offset != null) ? offset.x() : 0)) / scale,
-                -(arcC.y() - radius - center.y() + ((offset != null) ? offset.y() : 0)) / scale,
-                radius * 2 / scale, -radius * 2 / scale);
+        if (!recorded.getRegions().isEmpty() && recorded.getRegionBounds().intersects(x0, y0, x1, y1, scale)) {
+            setPen(Qt.PenStyle.NoPen);
+            setBrush(brush);
+            drawPath(recorded.getRegions());
+        }
+        restore();
 
-        var pen = new QPen(pen());
-        if (aperture != null) pen.setWidth((int) (aperture.getMeasures().get(0) / scale));
-        setPen(pen);
-        drawArc(arcRect, (int) (ang1 * arcQ), (int) ((ang2 - ang1) * arcQ));
+        // Flashes use aperture shapes made for the screen scale,
+        // ones less than a pixel and a half are drawn as points
+        if (apertures != null) {
+            var pointPen = new QPen(pen.color(), 0);
+            for (var flash : recorded.getFlashes().entrySet()) {
+                var aperture = flash.getKey();
+                var points = flash.getValue();
+                var rect = shapes.get(aperture, macros, scale).boundingRect();
+                var margin = Math.max(Math.max(Math.abs(rect.left()), Math.abs(rect.right())),
+                        Math.max(Math.abs(rect.top()), Math.abs(rect.bottom()))) * scale;
+                if ((rect.width() < 1.5) && (rect.height() < 1.5)) {
+                    setPen(pointPen);
+                    points.query(x0 - margin, y0 - margin, x1 + margin, y1 + margin, i -> drawPoint(
+                            (int) Math.round((points.getX(i) + ox + center.x()) / scale),
+                            (int) Math.round(-(points.getY(i) + oy - center.y()) / scale)));
+                } else {
+                    setPen(Qt.PenStyle.NoPen);
+                    setBrush(brush);
+                    points.query(x0 - margin, y0 - margin, x1 + margin, y1 + margin,
+                            i -> drawAperture(points.getX(i), points.getY(i), offset, aperture, macros));
+                }
+            }
+        }
         setPen(Qt.PenStyle.NoPen);
+        setBrush(Qt.BrushStyle.NoBrush);
     }
 
-    public void drawApertureLine(final QPointF start, final QPointF end, final Aperture aperture) {
-        var pen = new QPen(pen());
-        if (aperture != null) pen.setWidth((int) (aperture.getMeasures().get(0) / scale));
-        setPen(pen);
-        drawLine(start, end);
+    // Pen of the aperture width, in layer units when it is at least a pixel wide
+    private QPen strokePen(QPen pen, Aperture aperture) {
+        var p = new QPen(pen);
+        if ((aperture != null) && (aperture.getValues().length > 0)) {
+            var pixels = (int) (aperture.getValues()[0] / scale);
+            p.setCosmetic(pixels == 0);
+            p.setWidthF((pixels == 0) ? 0 : pixels * scale);
+        } else {
+            p.setCosmetic(true);
+        }
+        return p;
     }
 
     public void drawAperture(final QPointF p, final Aperture a, final HashMap<String, Macro> macros) {
         if (a == null) return;
-
-        switch (a.getMacro()) {
-            case "C" -> {   // Circle
-                var radius = a.getMeasures().get(0) / scale / 2;
-                drawEllipse(p, radius, radius);
-            }
-            case "O" ->     // Oval
-                    drawEllipse(p, a.getMeasures().get(0) / scale / 2, a.getMeasures().get(1) / scale / 2);
-
-            case "R" -> {   // Rectangle
-                var rx = a.getMeasures().get(0) / scale / 2;
-                var ry = a.getMeasures().get(1) / scale / 2;
-                drawRect(new QRectF(p.x() - rx, p.y() - ry, rx * 2, ry * 2));
-            }
-            default ->      // Macro name
-                    drawMacro(p, macros.get(a.getMacro()), a.getMeasures().toArray(Double[]::new), brush().color());
-        }
+        var shape = shapes.get(a, macros, scale);
+        translate(p.x(), p.y());
+        drawPath(shape);
+        translate(-p.x(), -p.y());
     }
 
-    public final void drawMacro(final QPointF p, Macro macro, Double[] measures, QColor color) {
-        var result = macro.eval(measures);
-        for (var r : result) {
-            switch (r.getType()) {
-                case Circle -> {
-                    var dia = r.getValue(0) / scale / 2;
-                    var center = new QPointF(r.getValue(1) / scale, -r.getValue(2) / scale).add(p);
-                    drawEllipse(center, dia, dia);
-                }
-                case Outline -> {
-                    var poly = new QPolygonF();
-                    for (var i = 0; i < r.getValue(0) * 2; i+=2) {
-                        poly.append(new QPointF(r.getValue(i+1) / scale, -r.getValue(i+2) / scale).add(p));
-                    }
-                    drawPolygon(poly);
-                }
-                case VectorLine -> {
-                    setPen(new QPen(color, r.getValue(0) / scale));
-                    drawLine(new QPointF(r.getValue(1) / scale, -r.getValue(2) / scale).add(p),
-                            new QPointF(r.getValue(3) / scale, -r.getValue(4) / scale).add(p));
-                    setPen(Qt.PenStyle.NoPen);
-                }
-            }
-        }
+    private void drawAperture(double x, double y, QPointF offset, Aperture a, HashMap<String, Macro> macros) {
+        if (a == null) return;
+        var shape = shapes.get(a, macros, scale);
+        var dx = (((offset != null) ? offset.x() : 0) + x + center.x()) / scale;
+        var dy = -(((offset != null) ? offset.y() : 0) + y - center.y()) / scale;
+        translate(dx, dy);
+        drawPath(shape);
+        translate(-dx, -dy);
     }
 
     public void drawFeature(Feature f, boolean selected) {
+        drawFeature(f, selected, f.isValid());
+    }
+
+    public void drawFeature(Feature f, boolean selected, boolean valid) {
         if (f instanceof RoundFeature m) {
             var dia = (int) Math.round(m.getRadius() / scale);
             var c = translatedPoint(m.getCenter().getX(), m.getCenter().getY());
 
             setPen(selected ?
                     colorSettings.getSelectedPen() :
-                    m.isValid() ? colorSettings.getValidFeaturePen() : colorSettings.getInvalidFeaturePen()
+                    valid ? colorSettings.getValidFeaturePen() : colorSettings.getInvalidFeaturePen()
             );
 
             // Draw feature sign
             drawEllipse(c, dia, dia);
-            if (!m.isValid()) {
+            if (!valid) {
                 var r = m.getRadius() / scale / 2;
                 drawLine((int) (c.x() - r), (int) (c.y() - r), (int) (c.x() + r), (int) (c.y() + r));
                 drawLine((int) (c.x() + r), (int) (c.y() - r), (int) (c.x() - r), (int) (c.y() + r));
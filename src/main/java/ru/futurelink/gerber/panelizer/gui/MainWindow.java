@@ -119,9 +119,10 @@ public class MainWindow extends QMainWindow {
                             QMessageBox.StandardButton.Yes,
                             QMessageBox.StandardButton.No,
                             QMessageBox.StandardButton.Cancel));
-            if (res == QMessageBox.StandardButton.Cancel) { event.ignore(); }
+            if (res == QMessageBox.StandardButton.Cancel) { event.ignore(); return; }
             if (res == QMessageBox.StandardButton.Yes) projectManager.saveProject();
         }
+        workArea.shutdown();
     }
 
     // Slot
@@ -0,0 +1,64 @@
+package ru.futurelink.gerber.panelizer.gui;
+
+import io.qt.core.QObject;
+import io.qt.core.QTimer;
+import lombok.Getter;
+import ru.futurelink.gerber.panelizer.Layer;
+
+import java.util.EnumSet;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects layout changes during a frame and merges the layer types
+ * they made dirty once, when the frame timer fires. Drill layers are
+ * always merged after outline, because features put holes into them.
+ */
+public class MergeScheduler {
+    private final static int frameMs = 16;
+
+    private final QTimer timer;
+    private final Consumer<EnumSet<Layer.Type>> merge;
+    private final EnumSet<Layer.Type> dirty = EnumSet.noneOf(Layer.Type.class);
+    @Getter private int requests;      // Changes marked
+    @Getter private int merges;        // Merges started
+
+    private final static Logger log = Logger.getLogger("MergeScheduler");
+
+    public MergeScheduler(QObject parent, Consumer<EnumSet<Layer.Type>> merge) {
+        this.merge = merge;
+        timer = new QTimer(parent);
+        timer.setSingleShot(true);
+        timer.setInterval(frameMs);
+        timer.timeout.connect(this::flush);
+    }
+
+    public final void markDirty(Iterable<Layer.Type> types) {
+        for (var type : types) {
+            if (type == null) continue;
+            dirty.add(type);
+            // Outline features make holes
+            if (type == Layer.Type.EdgeCuts) dirty.add(Layer.Type.TopDrill);
+        }
+        requests++;
+        if (!timer.isActive()) timer.start();
+    }
+
+    /**
+     * Changes that did not need a merge of their own.
+     */
+    public final int getAvoided() {
+        return requests - merges;
+    }
+
+    private void flush() {
+        if (dirty.isEmpty()) return;
+        var types = EnumSet.copyOf(dirty);
+        dirty.clear();
+        merges++;
+        log.log(Level.FINE, "Merging {0}, {1} of {2} changes coalesced",
+                new Object[] { types, getAvoided(), requests });
+        merge.accept(types);
+    }
+}
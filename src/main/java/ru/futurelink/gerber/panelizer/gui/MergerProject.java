@@ -15,6 +15,7 @@ import ru.futurelink.gerber.panelizer.exceptions.GerberException;
 import java.io.*;
 import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -74,6 +75,7 @@ public class MergerProject extends QObject {
     public static MergerProject load(QObject parent, String filename) throws IOException, GerberException {
         var mapper = new ObjectMapper();
         var project = new MergerProject(parent);
+        var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         try (var zip = new ZipFile(filename)) {
             var iter = zip.entries().asIterator();
             while (iter.hasNext()) {
@@ -105,9 +107,11 @@ public class MergerProject extends QObject {
                     project.margin = node.get("margin") == null ? defaultMargin : node.get("margin").asDouble();
                 } else if (element.getName().endsWith(".zip")) {
                     var uuid = element.getName().substring(0, element.getName().length() - 4);
-                    project.batches.put(UUID.fromString(uuid), new BatchReader(zip.getInputStream(element)).read(""));
+                    project.batches.put(UUID.fromString(uuid), new BatchReader(zip.getInputStream(element)).read("", executor));
                 }
             }
+        } finally {
+            executor.shutdown();
         }
         return project;
     }
@@ -150,7 +154,12 @@ public class MergerProject extends QObject {
     public final UUID addBatchZIP(String filename) throws IOException, GerberException {
         var name = new QFileInfo(filename).fileName();
         var uuid = UUID.randomUUID();
-        batches.put(uuid, new BatchReader(filename).read(name));
+        var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            batches.put(uuid, new BatchReader(filename).read(name, executor));
+        } finally {
+            executor.shutdown();
+        }
         return uuid;
     }
 
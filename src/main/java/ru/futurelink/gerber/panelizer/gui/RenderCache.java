@@ -0,0 +1,337 @@
+package ru.futurelink.gerber.panelizer.gui;
+
+import io.qt.core.QRectF;
+import io.qt.core.Qt;
+import io.qt.gui.QPainterPath;
+import lombok.Getter;
+import ru.futurelink.gerber.panelizer.canvas.Aperture;
+import ru.futurelink.gerber.panelizer.canvas.Geometry;
+import ru.futurelink.gerber.panelizer.gbr.CommandStore;
+import ru.futurelink.gerber.panelizer.gbr.Gerber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.WeakHashMap;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gerber layers recorded once into paths in layer coordinates, so painting
+ * a layer at any offset and scale does not walk its commands again.
+ * Layers are kept by their objects: source batch layers don't change,
+ * and each merge gives new merged layers, so old ones are just dropped.
+ */
+public class RenderCache {
+    // Lines of one aperture are split into paths of this size, to skip the ones out of view
+    private final static int strokeChunk = 256;
+
+    private final WeakHashMap<Gerber, Recorded> recorded = new WeakHashMap<>();
+
+    private final static Logger log = Logger.getLogger("RenderCache");
+
+    /**
+     * Bounding box in layer coordinates.
+     */
+    public static final class Bounds {
+        @Getter private double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        @Getter private double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+        private void add(double x, double y) {
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        private void add(Bounds b) {
+            if (b.isEmpty()) return;
+            add(b.minX, b.minY);
+            add(b.maxX, b.maxY);
+        }
+
+        public boolean isEmpty() {
+            return minX > maxX;
+        }
+
+        public double width() {
+            return isEmpty() ? 0 : maxX - minX;
+        }
+
+        public double height() {
+            return isEmpty() ? 0 : maxY - minY;
+        }
+
+        /**
+         * True if the box grown by margin overlaps the area.
+         */
+        public boolean intersects(double x0, double y0, double x1, double y1, double margin) {
+            return !isEmpty() && (minX - margin <= x1) && (maxX + margin >= x0) &&
+                    (minY - margin <= y1) && (maxY + margin >= y0);
+        }
+    }
+
+    /**
+     * Part of lines and arcs drawn with one aperture.
+     */
+    public static final class Stroke {
+        @Getter private final Aperture aperture;
+        @Getter private final QPainterPath path = new QPainterPath();
+        @Getter private final Bounds bounds = new Bounds();
+        private int size;
+
+        private Stroke(Aperture aperture) {
+            this.aperture = aperture;
+        }
+    }
+
+    /**
+     * Points of flashes with one aperture, put into grid cells after recording.
+     */
+    public static final class Points {
+        private double[] xy = new double[16];
+        @Getter private int count;
+        @Getter private final Bounds bounds = new Bounds();
+        private double cellSize;
+        private int cols, rows;
+        private int[] cellStart;
+
+        private void add(double x, double y) {
+            if (xy.length < count * 2 + 2) xy = Arrays.copyOf(xy, xy.length * 2);
+            xy[count * 2] = x;
+            xy[count * 2 + 1] = y;
+            bounds.add(x, y);
+            count++;
+        }
+
+        public double getX(int index) {
+            return xy[index * 2];
+        }
+
+        public double getY(int index) {
+            return xy[index * 2 + 1];
+        }
+
+        // Reorders points by cells of about four points each
+        private void index() {
+            var width = Math.max(bounds.width(), 1e-6);
+            var height = Math.max(bounds.height(), 1e-6);
+            cellSize = Math.max(Math.sqrt(width * height * 4 / count), Math.max(width, height) / 1024);
+            cols = (int) (width / cellSize) + 1;
+            rows = (int) (height / cellSize) + 1;
+            cellStart = new int[cols * rows + 1];
+            var cells = new int[count];
+            for (var i = 0; i < count; i++) {
+                cells[i] = cell(getX(i), getY(i));
+                cellStart[cells[i] + 1]++;
+            }
+            for (var c = 0; c < cols * rows; c++) cellStart[c + 1] += cellStart[c];
+            var fill = Arrays.copyOf(cellStart, cols * rows);
+            var sorted = new double[count * 2];
+            for (var i = 0; i < count; i++) {
+                var p = fill[cells[i]]++;
+                sorted[p * 2] = getX(i);
+                sorted[p * 2 + 1] = getY(i);
+            }
+            xy = sorted;
+        }
+
+        private int cell(double x, double y) {
+            return row(y) * cols + col(x);
+        }
+
+        private int col(double x) {
+            return Math.max(0, Math.min(cols - 1, (int) ((x - bounds.minX) / cellSize)));
+        }
+
+        private int row(double y) {
+            return Math.max(0, Math.min(rows - 1, (int) ((y - bounds.minY) / cellSize)));
+        }
+
+        /**
+         * Gives indexes of points in cells overlapping the area, points near its border may be out of it.
+         */
+        public void query(double x0, double y0, double x1, double y1, IntConsumer consumer) {
+            if ((count == 0) || !bounds.intersects(x0, y0, x1, y1, 0)) return;
+            for (var r = row(y0); r <= row(y1); r++) {
+                for (var i = cellStart[r * cols + col(x0)]; i < cellStart[r * cols + col(x1) + 1]; i++) {
+                    consumer.accept(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recorded layer: lines and arcs by aperture (null for lines drawn
+     * without apertures), filled regions and flash points by aperture.
+     */
+    public static final class Recorded {
+        @Getter private final ArrayList<Stroke> strokes = new ArrayList<>();
+        @Getter private final QPainterPath regions = new QPainterPath();
+        @Getter private final Bounds regionBounds = new Bounds();
+        @Getter private final LinkedHashMap<Aperture, Points> flashes = new LinkedHashMap<>();
+        @Getter private final Bounds bounds = new Bounds();
+        // Largest aperture parameter, so lines and flashes can't go further out of bounds
+        @Getter private double margin;
+
+        private Recorded() {
+            regions.setFillRule(Qt.FillRule.WindingFill);
+        }
+
+        private Stroke stroke(Aperture a) {
+            var s = new Stroke(a);
+            strokes.add(s);
+            return s;
+        }
+
+        private void addFlash(Aperture a, double x, double y) {
+            flashes.computeIfAbsent(a, k -> new Points()).add(x, y);
+        }
+
+        private void finish() {
+            for (var s : strokes) {
+                bounds.add(s.bounds);
+                addMargin(s.aperture);
+            }
+            bounds.add(regionBounds);
+            for (var f : flashes.entrySet()) {
+                f.getValue().index();
+                bounds.add(f.getValue().bounds);
+                addMargin(f.getKey());
+            }
+        }
+
+        private void addMargin(Aperture a) {
+            if (a == null) return;
+            for (var v : a.getValues()) margin = Math.max(margin, Math.abs(v));
+        }
+    }
+
+    public final Recorded get(Gerber g, HashMap<Integer, Aperture> apertures) {
+        var r = recorded.get(g);
+        if (r == null) {
+            r = record(g, apertures);
+            recorded.put(g, r);
+        }
+        return r;
+    }
+
+    public final void clear() {
+        recorded.clear();
+    }
+
+    private static Recorded record(Gerber g, HashMap<Integer, Aperture> apertures) {
+        var time = System.currentTimeMillis();
+        var r = new Recorded();
+        Aperture currentAperture = null;
+        var currentInterpolation = Geometry.Interpolation.LINEAR;
+        double x = 0, y = 0;
+        var polygonMode = false;
+        Stroke stroke = null;
+
+        var c = g.contents();
+        while (c.next()) {
+            switch (c.getOpcode()) {
+                case CommandStore.DRAW -> {
+                    QPainterPath path;
+                    Bounds bounds;
+                    if (polygonMode) {
+                        path = r.regions;
+                        bounds = r.regionBounds;
+                    } else {
+                        if ((stroke == null) || (stroke.size >= strokeChunk)) {
+                            stroke = r.stroke(currentAperture);
+                            stroke.path.moveTo(x, y);
+                            stroke.bounds.add(x, y);
+                        }
+                        stroke.size++;
+                        path = stroke.path;
+                        bounds = stroke.bounds;
+                    }
+                    if ((currentInterpolation == Geometry.Interpolation.LINEAR) || (c.getI() == null) || (c.getJ() == null)) {
+                        path.lineTo(c.getX(), c.getY());
+                    } else {
+                        arcTo(path, x, y, c.getX(), c.getY(), c.getI(), c.getJ(), currentInterpolation);
+                        // Bounds of the whole circle
+                        var radius = Math.sqrt(c.getI() * c.getI() + c.getJ() * c.getJ());
+                        bounds.add(x + c.getI() - radius, y + c.getJ() - radius);
+                        bounds.add(x + c.getI() + radius, y + c.getJ() + radius);
+                    }
+                    x = c.getX();
+                    y = c.getY();
+                    bounds.add(x, y);
+                }
+                case CommandStore.MOVE -> {
+                    x = c.getX();
+                    y = c.getY();
+                    if (polygonMode) {
+                        r.regions.closeSubpath();
+                        r.regions.moveTo(x, y);
+                        r.regionBounds.add(x, y);
+                    } else if (stroke != null) {
+                        // Traces of one aperture share the stroke, the next line starts here
+                        stroke.path.moveTo(x, y);
+                        stroke.bounds.add(x, y);
+                    }
+                }
+                case CommandStore.FLASH -> {
+                    x = c.getX();
+                    y = c.getY();
+                    if ((apertures != null) && (currentAperture != null)) r.addFlash(currentAperture, x, y);
+                    // Line after the flash starts from its point
+                    if (!polygonMode && (stroke != null)) {
+                        stroke.path.moveTo(x, y);
+                        stroke.bounds.add(x, y);
+                    }
+                }
+                case CommandStore.GCODE -> {
+                    var code = c.getCode();
+                    if (code <= 3) {
+                        currentInterpolation = switch (code) {
+                            case 1 -> Geometry.Interpolation.LINEAR;
+                            case 2 -> Geometry.Interpolation.CW;
+                            case 3 -> Geometry.Interpolation.CCW;
+                            default -> currentInterpolation;
+                        };
+                    } else if (code == 36) {
+                        polygonMode = true;
+                        r.regions.moveTo(x, y);
+                        r.regionBounds.add(x, y);
+                    } else if ((code == 37) && polygonMode) {
+                        r.regions.closeSubpath();
+                        polygonMode = false;
+                        stroke = null;
+                    }
+                }
+                case CommandStore.APERTURE -> {
+                    if (apertures != null) currentAperture = apertures.get(c.getCode());
+                    stroke = null;
+                }
+            }
+        }
+        r.finish();
+        log.log(Level.FINE, "Layer {0} recorded in {1} ms",
+                new Object[] { g.getName(), System.currentTimeMillis() - time });
+        return r;
+    }
+
+    /**
+     * Arc from the current point, its center is given by offset from the start.
+     * QPainterPath angles go clockwise in layer coordinates where Y is up.
+     */
+    private static void arcTo(QPainterPath path, double x0, double y0, double x1, double y1,
+                              double i, double j, Geometry.Interpolation interpolation) {
+        var cx = x0 + i;
+        var cy = y0 + j;
+        var radius = Math.sqrt(i * i + j * j);
+        var ang1 = Math.atan2(y0 - cy, x0 - cx);
+        var ang2 = Math.atan2(y1 - cy, x1 - cx);
+        var sweep = ang2 - ang1;
+        if ((interpolation == Geometry.Interpolation.CCW) && (sweep <= 0)) sweep += 2 * Math.PI;
+        if ((interpolation == Geometry.Interpolation.CW) && (sweep >= 0)) sweep -= 2 * Math.PI;
+        path.arcTo(new QRectF(cx - radius, cy - radius, radius * 2, radius * 2),
+                -Math.toDegrees(ang1), -Math.toDegrees(sweep));
+    }
+}
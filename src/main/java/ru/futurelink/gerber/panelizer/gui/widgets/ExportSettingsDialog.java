@@ -26,6 +26,25 @@ public class ExportSettingsDialog extends QDialog {
         table.setHorizontalHeaderItem(1, new QTableWidgetItem("File name pattern"));
         layout().addWidget(table);
 
+        var levelLayout = new QHBoxLayout();
+        levelLayout.addWidget(new QLabel("ZIP compression level"));
+        var levelBox = new QSpinBox(this);
+        levelBox.setRange(0, 9);
+        levelBox.setValue((settings.getCompressionLevel() < 0) ? 6 : settings.getCompressionLevel());
+        levelBox.valueChanged.connect(settings::setCompressionLevel);
+        levelLayout.addWidget(levelBox);
+        ((QVBoxLayout) layout()).addLayout(levelLayout);
+
+        var optimizeBox = new QCheckBox("Optimize drill path", this);
+        optimizeBox.setChecked(settings.isOptimizeDrillPath());
+        optimizeBox.toggled.connect(settings::setOptimizeDrillPath);
+        layout().addWidget(optimizeBox);
+
+        var repeatBox = new QCheckBox("Step and repeat identical boards in Gerber layers", this);
+        repeatBox.setChecked(settings.isStepAndRepeat());
+        repeatBox.toggled.connect(settings::setStepAndRepeat);
+        layout().addWidget(repeatBox);
+
         var saveBtn = new QPushButton("Save");
         saveBtn.clicked.connect(this, "accept()");
 
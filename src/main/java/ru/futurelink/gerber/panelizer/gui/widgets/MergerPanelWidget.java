@@ -6,6 +6,7 @@ import io.qt.widgets.QMenu;
 import io.qt.widgets.QWidget;
 import lombok.Getter;
 import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.batch.BackgroundMerger;
 import ru.futurelink.gerber.panelizer.batch.Batch;
 import ru.futurelink.gerber.panelizer.batch.BatchMerger;
 import ru.futurelink.gerber.panelizer.canvas.Aperture;
@@ -17,12 +18,17 @@ import ru.futurelink.gerber.panelizer.exceptions.MergerException;
 import ru.futurelink.gerber.panelizer.gbr.Gerber;
 import ru.futurelink.gerber.panelizer.gbr.cmd.a.AD;
 import ru.futurelink.gerber.panelizer.gbr.cmd.a.AM;
+import ru.futurelink.gerber.panelizer.gui.ApertureShapeCache;
 import ru.futurelink.gerber.panelizer.gui.ColorSettings;
 import ru.futurelink.gerber.panelizer.gui.GerberPainter;
+import ru.futurelink.gerber.panelizer.gui.MergeScheduler;
+import ru.futurelink.gerber.panelizer.gui.RenderCache;
 import ru.futurelink.gerber.panelizer.gui.Utils;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 public class MergerPanelWidget extends QWidget {
@@ -32,6 +38,14 @@ public class MergerPanelWidget extends QWidget {
     @Getter private double margin;
     private final HashMap<Layer.Type, HashMap<Integer, Aperture>> apertures;
     private final HashMap<Layer.Type, HashMap<String, Macro>> macros;
+    private final ApertureShapeCache apertureShapes;
+    private final RenderCache renderCache;
+    private final BackgroundMerger backgroundMerger;
+    // Result of the last finished background merge, painted instead of the layout being edited
+    private Batch mergedBatch;
+    private Map<UUID, Boolean> validFeatures;
+    private final Signal1<BackgroundMerger.Result> mergeFinished = new Signal1<>();
+    @Getter private final MergeScheduler mergeScheduler;
     private QPointF center;
     private QPointF mousePosition;
     private QPoint mousePressPoint;
@@ -58,6 +72,13 @@ public class MergerPanelWidget extends QWidget {
         mousePressPoint = null;
         apertures = new HashMap<>();
         macros = new HashMap<>();
+        apertureShapes = new ApertureShapeCache();
+        renderCache = new RenderCache();
+        backgroundMerger = new BackgroundMerger(m.getName());
+        mergedBatch = new Batch(m.getName());
+        validFeatures = new HashMap<>();
+        mergeFinished.connect(this::applyMerge, Qt.ConnectionType.QueuedConnection);
+        mergeScheduler = new MergeScheduler(this, this::mergeLayers);
 
         addFeatureAction = new QAction("Add MouseBites feature");
         addFeatureAction.triggered.connect(this, "addMouseBites(boolean)");
@@ -80,24 +101,14 @@ public class MergerPanelWidget extends QWidget {
             getMerger().removeBatchInstance(b);
         }
         deleteItem.emit(instanceUnderMouse);
-        try {
-            mergeDisplayLayers();
-        } catch (MergerException e) {
-            e.printStackTrace();
-        } finally {
-            repaint();
-        }
+        layoutChanged(instanceUnderMouse);
+        repaint();
     }
 
     private void addMouseBites(boolean t) {
         addFeatureItem.emit(MouseBites.class, mousePosition.x(), mousePosition.y());
-        try {
-            mergeDisplayLayers();
-        } catch (MergerException e) {
-            e.printStackTrace();
-        } finally {
-            repaint();
-        }
+        mergeDisplayLayers();
+        repaint();
     }
 
     @Override
@@ -136,7 +147,7 @@ public class MergerPanelWidget extends QWidget {
             // Object moved
             if (instanceUnderMouse != null) {
                 moveItem.emit(instanceUnderMouse);
-                mergeDisplayLayers();
+                layoutChanged(instanceUnderMouse);
                 repaint();
             }
         } catch (Exception ex) {
@@ -284,6 +295,7 @@ public class MergerPanelWidget extends QWidget {
             } else {
                 scale = scale / 1.1;
             }
+            apertureShapes.clear();
 
             // Move center relative to current mouse position
             //var centerOffsetX = (center.x() - mousePosition.x());
@@ -296,7 +308,7 @@ public class MergerPanelWidget extends QWidget {
 
     @Override
     protected void paintEvent(QPaintEvent event) {
-        var painter = new GerberPainter(this, scale, center);
+        var painter = new GerberPainter(this, scale, center, apertureShapes, renderCache);
         painter.setBackground(new QBrush(new QColor(40, 40, 40)));
         painter.setRenderHint(QPainter.RenderHint.Antialiasing);
 
@@ -304,7 +316,7 @@ public class MergerPanelWidget extends QWidget {
 
         // Draw merged layers
         // ------------------
-        if (merger.getMergedBatch().getLayer(Layer.Type.EdgeCuts) instanceof Gerber fullOutline) {
+        if (mergedBatch.getLayer(Layer.Type.EdgeCuts) instanceof Gerber fullOutline) {
             painter.setPen(new QPen(new QColor(0, 0, 0), 1));
             painter.drawGerber(
                     fullOutline, null,
@@ -318,7 +330,7 @@ public class MergerPanelWidget extends QWidget {
             painter.drawBoundingBoxMarks(new QRectF(fullOutline.getMinX(), fullOutline.getMinY(), w, h));
         }
 
-        if (merger.getMergedBatch().getLayer(additionalLayerType) instanceof Gerber g) {
+        if (mergedBatch.getLayer(additionalLayerType) instanceof Gerber g) {
             painter.drawGerber(g,
                     null,
                     getApertures(additionalLayerType),
@@ -339,10 +351,10 @@ public class MergerPanelWidget extends QWidget {
         var fi = merger.features();
         while (fi.hasNext()) {
             var f = fi.next();
-            painter.drawFeature(f, f.equals(instanceUnderMouse));
+            painter.drawFeature(f, f.equals(instanceUnderMouse), validFeatures.getOrDefault(f.getId(), false));
         }
 
-        painter.drawHoles(merger.getMergedBatch().getLayer(Layer.Type.TopDrill), null);
+        painter.drawHoles(mergedBatch.getLayer(Layer.Type.TopDrill), null);
 
         // Draw border
         painter.setPen(colorSettings.getAxisPen());
@@ -379,26 +391,55 @@ public class MergerPanelWidget extends QWidget {
                 Math.pow(p.y() - center.getY(), 2) < radius * radius);
     }
 
-    public void mergeDisplayLayers() throws MergerException {
-        merger.mergeLayer(Layer.Type.EdgeCuts);
+    /**
+     * Marks all displayed layers to be merged in background with the current
+     * layout. Changes made during a frame are merged once, the merge in flight
+     * is cancelled. The result is painted when it is ready.
+     */
+    public void mergeDisplayLayers() {
+        mergeScheduler.markDirty(Arrays.asList(Layer.Type.EdgeCuts, additionalLayerType));
+    }
+
+    /**
+     * Marks displayed layers affected by the changed item, a feature or a batch instance.
+     */
+    public void layoutChanged(Object item) {
+        if (item instanceof Feature f) {
+            var types = EnumSet.noneOf(Layer.Type.class);
+            for (var type : f.affectedLayerTypes()) {
+                if ((type == Layer.Type.EdgeCuts) || (type == Layer.Type.TopDrill) || (type == additionalLayerType))
+                    types.add(type);
+            }
+            mergeScheduler.markDirty(types);
+        } else {
+            mergeDisplayLayers();
+        }
+    }
+
+    private void mergeLayers(EnumSet<Layer.Type> types) {
+        backgroundMerger.submit(merger.snapshot(), types, mergeFinished::emit);
+    }
+
+    // Runs on UI thread, when background merge is done
+    private void applyMerge(BackgroundMerger.Result result) {
+        if (!backgroundMerger.isLatest(result)) return;
+        mergedBatch = result.batch();
+        validFeatures = result.validFeatures();
 
         // Reload apertures & macros
         if (additionalLayerType != null) {
-            merger.mergeLayer(additionalLayerType);
             loadApertures(additionalLayerType);
             loadMacros(additionalLayerType);
         }
 
-        // Drill merge MUST be the last one, because
-        // hole can be created by other layers' features.
-        merger.mergeLayer(Layer.Type.TopDrill);
-
-        batchChanged.emit(new QSizeF(merger.getMergedBatch().width(), merger.getMergedBatch().height()));
+        batchChanged.emit(new QSizeF(mergedBatch.width(), mergedBatch.height()));
+        repaint();
     }
 
     private void loadApertures(Layer.Type type) {
-        var layer = merger.getMergedBatch().getLayer(type);
+        var layer = mergedBatch.getLayer(type);
         if (layer instanceof Gerber g) {
+            apertureShapes.clear();
             apertures.put(type, new HashMap<>());
             for (var cmd : g.getApertures()) {
                 if (cmd instanceof AD a)
@@ -408,22 +449,33 @@ public class MergerPanelWidget extends QWidget {
     }
 
     private void loadMacros(Layer.Type type) {
-        var layer = merger.getMergedBatch().getLayer(type);
+        var layer = mergedBatch.getLayer(type);
         if (layer instanceof Gerber g) {
+            apertureShapes.clear();
             macros.put(type, new HashMap<>());
             for (var cmd : g.getMacros()) {
-                if (cmd instanceof AM a) {
-                    var t = new ArrayList<String>();
-                    a.blocks().forEachRemaining(t::add);
-                    macros.get(type).put(a.getName(), new Macro(t));
-                }
+                if (cmd instanceof AM a) macros.get(type).put(a.getName(), Macro.compile(a));
             }
         }
     }
 
     public final void clear() {
         merger.clear();
+        backgroundMerger.clear();
+        mergedBatch = new Batch(merger.getName());
+        validFeatures = new HashMap<>();
+        renderCache.clear();
+        apertures.clear();
+        macros.clear();
+        Macro.clearCompiled();
         margin = 0;
         repaint();
     }
+
+    /**
+     * Stops background merging, called when the panel is closed.
+     */
+    public final void shutdown() {
+        backgroundMerger.close();
+    }
 }
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.UUID;
+import java.util.concurrent.Executors;
 
 public class ProjectManagerWidget extends QDockWidget {
     private final QTreeWidget projectTree;
@@ -132,13 +133,8 @@ public class ProjectManagerWidget extends QDockWidget {
             var f = constr.newInstance(UUID.randomUUID(), new Point(fp.getX(), fp.getY()), 5);
             project.addFeaturePlacement(f.getId(), fp);
             workArea.addFeature(f);
-            try {
-                workArea.mergeDisplayLayers();
-            } catch (MergerException e) {
-                e.printStackTrace();
-            } finally {
-                refresh();
-            }
+            workArea.layoutChanged(f);
+            refresh();
         } catch (NoSuchMethodException | InvocationTargetException |
                  InstantiationException | IllegalAccessException ex) {
             ex.printStackTrace();
@@ -308,15 +304,19 @@ public class ProjectManagerWidget extends QDockWidget {
         dlg.setNameFilter("Gerber ZIP archive (*.zip)");
         dlg.setDefaultSuffix(".zip");
         if (dlg.exec() != 0) {
+            var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
             try {
-                workArea.getMerger().merge();
+                workArea.getMerger().setStepAndRepeat(settings.isStepAndRepeat());
+                workArea.getMerger().merge(executor);
                 new BatchWriter(
                         new File(dlg.selectedFiles().get(0)),
                         workArea.getMerger().getMergedBatch()
-                ).write(settings);
+                ).write(settings, executor);
                 QMessageBox.information(this, "Export", "Gerber panel successfully exported");
             } catch (IOException | MergerException | GerberException e) {
                 QMessageBox.critical(this, "Error...", e.getMessage());
+            } finally {
+                executor.shutdown();
             }
         }
     }
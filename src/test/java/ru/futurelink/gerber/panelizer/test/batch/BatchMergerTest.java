@@ -0,0 +1,255 @@
+package ru.futurelink.gerber.panelizer.test.batch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.batch.BackgroundMerger;
+import ru.futurelink.gerber.panelizer.batch.Batch;
+import ru.futurelink.gerber.panelizer.batch.BatchMerger;
+import ru.futurelink.gerber.panelizer.canvas.Point;
+import ru.futurelink.gerber.panelizer.canvas.fetaures.MouseBites;
+import ru.futurelink.gerber.panelizer.drl.Excellon;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRound;
+import ru.futurelink.gerber.panelizer.exceptions.GerberException;
+import ru.futurelink.gerber.panelizer.exceptions.MergerException;
+import ru.futurelink.gerber.panelizer.gbr.Gerber;
+import ru.futurelink.gerber.panelizer.gbr.GerberWriter;
+import ru.futurelink.gerber.panelizer.gbr.cmd.FS;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AD;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
+import ru.futurelink.gerber.panelizer.gbr.cmd.g.GCode;
+import ru.futurelink.gerber.panelizer.gbr.cmd.t.TF;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+public class BatchMergerTest {
+    private Gerber gerber(String function) {
+        var g = new Gerber(function);
+        g.add(new TF(TF.FileFunction, function.split(",")));
+        g.add(new FS(true, true));
+        g.add(new AD(10, "C", "0.1"));
+        g.add(new GCode(1, ""));
+        g.add(new DAperture(10));
+        g.add(2, 0, 0);
+        g.add(1, 10, 0);
+        g.add(1, 10, 10);
+        return g;
+    }
+
+    private BatchMerger merger(int count) throws MergerException {
+        var batch = new Batch("board");
+        batch.addLayer(gerber("Profile,NP"));
+        batch.addLayer(gerber("Copper,L1,Top"));
+        batch.addLayer(gerber("Soldermask,Bot"));
+        var drill = new Excellon("drill");
+        drill.addHole(new HoleRound(5.0, 5.0, 1.0));
+        batch.addLayer(drill);
+
+        var merger = new BatchMerger("panel");
+        var batchId = UUID.randomUUID();
+        merger.addBatch(batchId, batch);
+        for (var i = 0; i < count; i++) {
+            merger.addBatchInstance(UUID.randomUUID(), batchId, i * 20, 0);
+        }
+        return merger;
+    }
+
+    @Test
+    void mergeEachLayerOnceTest() throws MergerException {
+        var count = 50;
+        var merger = merger(count);
+        merger.merge();
+
+        for (var type : new Layer.Type[] { Layer.Type.EdgeCuts, Layer.Type.FrontCopper, Layer.Type.BackMask, Layer.Type.TopDrill }) {
+            assertEquals(1, merger.getMergeCount(type));
+        }
+        assertEquals(0, merger.getMergeCount(Layer.Type.BackCopper));
+
+        var merged = merger.getMergedBatch();
+        assertEquals(5 * count, ((Gerber) merged.getLayer(Layer.Type.FrontCopper)).getContents().size());
+        assertEquals(count * 20 - 10, merged.getLayer(Layer.Type.EdgeCuts).getMaxX());
+        var holes = 0;
+        var iter = ((Excellon) merged.getLayer(Layer.Type.TopDrill)).holes();
+        while (iter.hasNext()) {
+            iter.next();
+            holes++;
+        }
+        assertEquals(count, holes);
+    }
+
+    @Test
+    void parallelMergeTest() throws MergerException {
+        var sequential = merger(20);
+        var parallel = merger(20);
+        for (var m : new BatchMerger[] { sequential, parallel }) {
+            m.addFeature(new MouseBites(UUID.randomUUID(), new Point(10, 5), 2));
+        }
+        sequential.merge();
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            parallel.merge(executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        for (var type : new Layer.Type[] { Layer.Type.EdgeCuts, Layer.Type.FrontCopper, Layer.Type.BackMask }) {
+            assertEquals(1, parallel.getMergeCount(type));
+            assertEquals(
+                    ((Gerber) sequential.getMergedBatch().getLayer(type)).getContents().toString(),
+                    ((Gerber) parallel.getMergedBatch().getLayer(type)).getContents().toString());
+        }
+        var holes = new Excellon[] {
+                (Excellon) sequential.getMergedBatch().getLayer(Layer.Type.TopDrill),
+                (Excellon) parallel.getMergedBatch().getLayer(Layer.Type.TopDrill) };
+        var s = holes[0].holes();
+        var p = holes[1].holes();
+        while (s.hasNext()) {
+            assertTrue(p.hasNext());
+            var h1 = s.next();
+            var h2 = p.next();
+            assertEquals(h1.getX(), h2.getX());
+            assertEquals(h1.getY(), h2.getY());
+        }
+        assertFalse(p.hasNext());
+    }
+
+    @Test
+    void backgroundMergeTest() throws MergerException, InterruptedException, ExecutionException {
+        var merger = merger(10);
+        var feature = new MouseBites(UUID.randomUUID(), new Point(10, 5), 2);
+        merger.addFeature(feature);
+        var types = List.of(Layer.Type.EdgeCuts, Layer.Type.TopDrill);
+        var background = new BackgroundMerger("panel");
+        var results = Collections.synchronizedList(new ArrayList<BackgroundMerger.Result>());
+
+        background.submit(merger.snapshot(), types, results::add).get();
+        assertEquals(1, results.size());
+        var first = results.get(0);
+        var outline = ((Gerber) first.batch().getLayer(Layer.Type.EdgeCuts)).getContents().toString();
+        assertTrue(first.validFeatures().containsKey(feature.getId()));
+        assertEquals(0, merger.getMergeCount(Layer.Type.EdgeCuts));
+
+        // Newer merge cancels or drops the one in flight
+        merger.batchInstances().next().moveOffset(-5, 0);
+        var cancelled = background.submit(merger.snapshot(), types, results::add);
+        feature.moveOffset(0, 1);
+        var latest = background.submit(merger.snapshot(), types, results::add);
+        latest.get();
+        assertTrue(cancelled.isDone());
+        var last = results.get(results.size() - 1);
+        assertTrue(background.isLatest(last));
+        assertTrue(results.size() <= 3);
+
+        // Layers of the first result are not changed by later merges
+        assertEquals(outline, ((Gerber) first.batch().getLayer(Layer.Type.EdgeCuts)).getContents().toString());
+        assertNotEquals(outline, ((Gerber) last.batch().getLayer(Layer.Type.EdgeCuts)).getContents().toString());
+
+        // Outline of a cancelled merge is merged by the next one asking only for drills
+        merger.batchInstances().next().moveOffset(5, 0);
+        background.submit(merger.snapshot(), List.of(Layer.Type.EdgeCuts), results::add);
+        background.submit(merger.snapshot(), List.of(Layer.Type.TopDrill), results::add).get();
+        merger.mergeLayer(Layer.Type.EdgeCuts);
+        assertEquals(((Gerber) merger.getMergedBatch().getLayer(Layer.Type.EdgeCuts)).getContents().toString(),
+                ((Gerber) results.get(results.size() - 1).batch().getLayer(Layer.Type.EdgeCuts)).getContents().toString());
+
+        // Nothing is merged after close
+        background.close();
+        assertThrows(RejectedExecutionException.class,
+                () -> background.submit(merger.snapshot(), types, results::add));
+    }
+
+    @Test
+    void applySnapshotTest() throws MergerException {
+        var merger = merger(10);
+        var feature = new MouseBites(UUID.randomUUID(), new Point(0.1, 0.1), 2);
+        merger.addFeature(feature);
+        var other = new BatchMerger("panel");
+
+        // Features moved in small steps get the exact place of the layout
+        for (var i = 0; i < 10; i++) {
+            feature.moveOffset(0.1, 0.013);
+            other.apply(merger.snapshot());
+        }
+        var applied = (MouseBites) other.features().next();
+        assertEquals(feature.getCenter(), applied.getCenter());
+
+        // Features staying in place are kept
+        other.apply(merger.snapshot());
+        assertSame(applied, other.features().next());
+    }
+
+    @Test
+    void moveInstanceTest() throws MergerException {
+        var merger = merger(20);
+        merger.mergeLayer(Layer.Type.FrontCopper);
+        var before = (Gerber) merger.getMergedBatch().getLayer(Layer.Type.FrontCopper);
+        var contents = before.getContents().toString();
+
+        // Only the moved instance changes, the layer merged before stays the same
+        var iter = merger.batchInstances();
+        iter.next();
+        iter.next().moveOffset(0, 30);
+        merger.mergeLayer(Layer.Type.FrontCopper);
+        var after = (Gerber) merger.getMergedBatch().getLayer(Layer.Type.FrontCopper);
+        assertEquals(contents, before.getContents().toString());
+        assertEquals(40, after.getMaxY());
+        assertEquals(100, after.getContents().size());
+        assertEquals(1, after.getApertures().size());
+
+        // Same as merged from scratch
+        var fresh = merger(20);
+        iter = fresh.batchInstances();
+        iter.next();
+        iter.next().moveOffset(0, 30);
+        fresh.mergeLayer(Layer.Type.FrontCopper);
+        assertEquals(((Gerber) fresh.getMergedBatch().getLayer(Layer.Type.FrontCopper)).getContents().toString(),
+                after.getContents().toString());
+
+        // Removed instance is dropped
+        merger.removeBatchInstance(merger.batchInstances().next());
+        merger.mergeLayer(Layer.Type.FrontCopper);
+        assertEquals(95, ((Gerber) merger.getMergedBatch().getLayer(Layer.Type.FrontCopper)).getContents().size());
+    }
+
+    @Test
+    void stepAndRepeatTest() throws MergerException, IOException, GerberException {
+        var merger = merger(0);
+        var batchId = merger.getBatchUUIDs().iterator().next();
+        for (var i = 0; i < 10; i++) {
+            merger.addBatchInstance(UUID.randomUUID(), batchId, (i % 5) * 20, (i / 5) * 15 + 5);
+        }
+        merger.addFeature(new MouseBites(UUID.randomUUID(), new Point(10, 10), 2));
+        merger.setStepAndRepeat(true);
+        merger.merge();
+
+        // Grid of instances is put once into a block
+        var copper = (Gerber) merger.getMergedBatch().getLayer(Layer.Type.FrontCopper);
+        assertEquals(7, copper.getContents().size());
+        assertEquals(90, copper.getMaxX());
+        assertEquals(30, copper.getMaxY());
+        var out = new ByteArrayOutputStream();
+        new GerberWriter(out).write(copper);
+        var text = out.toString(StandardCharsets.US_ASCII);
+        assertTrue(text.contains("%SRX5Y2I20.000000J15.000000*%\nG01*\nD10*\nX0Y5000000D02*\n"));
+        assertTrue(text.endsWith("%SR*%\n"));
+
+        // Outline changed by features is put as is
+        var outline = (Gerber) merger.getMergedBatch().getLayer(Layer.Type.EdgeCuts);
+        assertFalse(outline.getContents().toString().contains("SR"));
+
+        // Instances that are not a full grid are put one by one
+        merger.addBatchInstance(UUID.randomUUID(), batchId, 100, 5);
+        merger.mergeLayer(Layer.Type.FrontCopper);
+        assertEquals(5 * 11, ((Gerber) merger.getMergedBatch().getLayer(Layer.Type.FrontCopper)).getContents().size());
+    }
+}
@@ -0,0 +1,72 @@
+package ru.futurelink.gerber.panelizer.test.batch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.batch.Batch;
+import ru.futurelink.gerber.panelizer.batch.BatchReader;
+import ru.futurelink.gerber.panelizer.drl.Excellon;
+import ru.futurelink.gerber.panelizer.exceptions.GerberException;
+import ru.futurelink.gerber.panelizer.gbr.Gerber;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class BatchReaderTest {
+    private byte[] zip() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var zip = new ZipOutputStream(bytes)) {
+            for (var function : new String[] { "Profile,NP", "Copper,L1,Top", "Copper,L2,Bot" }) {
+                zip.putNextEntry(new ZipEntry(function.replace(",", "_") + ".gbr"));
+                zip.write(("%TF.FileFunction," + function + "*%\n" +
+                        "%FSLAX46Y46*%\n" +
+                        "%ADD10C,0.1*%\n" +
+                        "G01*\nD10*\nX0Y0D02*\nX10000000Y5000000D01*\nM02*\n").getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            zip.putNextEntry(new ZipEntry("drill.drl"));
+            zip.write("M48\nMETRIC\nT1C0.800\n%\nG90\nG05\nT1\nX1.0Y2.0\nX3.0Y4.0\nT0\nM30\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("readme.txt"));
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void assertBatch(Batch batch) {
+        for (var type : new Layer.Type[] { Layer.Type.EdgeCuts, Layer.Type.FrontCopper, Layer.Type.BackCopper }) {
+            var g = (Gerber) batch.getLayer(type);
+            assertNotNull(g);
+            assertEquals(4, g.getContents().size());
+            assertEquals(10.0, g.getMaxX());
+        }
+        var holes = ((Excellon) batch.getLayer(Layer.Type.TopDrill)).holes();
+        assertTrue(holes.hasNext());
+        assertEquals(1.0, holes.next().getX());
+        assertEquals(4.0, holes.next().getY());
+        assertFalse(holes.hasNext());
+    }
+
+    @Test
+    void parallelReadTest() throws IOException, GerberException {
+        var data = zip();
+        var file = Files.createTempFile("batch", ".zip");
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            Files.write(file, data);
+            assertBatch(new BatchReader(new ByteArrayInputStream(data)).read("stream"));
+            assertBatch(new BatchReader(new ByteArrayInputStream(data)).read("stream", executor));
+            assertBatch(new BatchReader(file.toString()).read("file", executor));
+        } finally {
+            executor.shutdown();
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package ru.futurelink.gerber.panelizer.test.batch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.batch.Batch;
+import ru.futurelink.gerber.panelizer.batch.BatchMerger;
+import ru.futurelink.gerber.panelizer.batch.BatchSettings;
+import ru.futurelink.gerber.panelizer.batch.BatchWriter;
+import ru.futurelink.gerber.panelizer.drl.Excellon;
+import ru.futurelink.gerber.panelizer.drl.ExcellonWriter;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRound;
+import ru.futurelink.gerber.panelizer.exceptions.GerberException;
+import ru.futurelink.gerber.panelizer.exceptions.MergerException;
+import ru.futurelink.gerber.panelizer.gbr.Gerber;
+import ru.futurelink.gerber.panelizer.gbr.GerberReader;
+import ru.futurelink.gerber.panelizer.gbr.GerberWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipFile;
+
+public class BatchWriterTest {
+    private Batch batch() throws IOException, GerberException {
+        // Non ASCII name needs UTF-8 flag of the entries
+        var batch = new Batch("board\u0428");
+        for (var function : new String[] { "Copper,L1,Top", "Profile,NP", "Soldermask,Bot" }) {
+            var contents = "%TF.FileFunction," + function + "*%\n" +
+                    "%FSLAX46Y46*%\n" +
+                    "%MOMM*%\n" +
+                    "%ADD10C,0.1*%\n" +
+                    "G01*\nD10*\nX0Y0D02*\nX10000000Y5000000D01*\nX0Y5000000D01*\n";
+            batch.addLayer(new GerberReader(new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8)))
+                    .read(function));
+        }
+        var drill = new Excellon("drill");
+        drill.addHole(new HoleRound(1.0, 2.0, 0.8));
+        drill.addHole(new HoleRound(3.0, 4.0, 0.8));
+        batch.addLayer(drill);
+        return batch;
+    }
+
+    private byte[] write(Batch batch, boolean parallel) throws IOException, GerberException {
+        var out = new ByteArrayOutputStream();
+        var settings = BatchSettings.getInstance();
+        if (parallel) {
+            var executor = Executors.newFixedThreadPool(4);
+            try {
+                new BatchWriter(out, batch).write(settings, executor);
+            } finally {
+                executor.shutdown();
+            }
+        } else {
+            new BatchWriter(out, batch).write(settings);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] layer(Layer layer) throws IOException, GerberException {
+        var out = new ByteArrayOutputStream();
+        if (layer instanceof Gerber g) {
+            new GerberWriter(out).write(g);
+        } else {
+            new ExcellonWriter(out).write((Excellon) layer);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void readWrittenTest() throws IOException, GerberException {
+        var batch = batch();
+        var data = write(batch, false);
+        var settings = BatchSettings.getInstance();
+        var file = Files.createTempFile("batch", ".zip");
+        try {
+            Files.write(file, data);
+            try (var zip = new ZipFile(file.toFile(), StandardCharsets.UTF_8)) {
+                // Entries go in the order of layer types
+                var names = new ArrayList<String>();
+                zip.stream().forEach(e -> names.add(e.getName()));
+                var types = new Layer.Type[] { Layer.Type.FrontCopper, Layer.Type.BackMask,
+                        Layer.Type.EdgeCuts, Layer.Type.TopDrill };
+                assertEquals(types.length, names.size());
+                for (var i = 0; i < types.length; i++) {
+                    assertEquals(settings.getFilename(types[i], batch.getName()), names.get(i));
+                    try (var stream = zip.getInputStream(zip.getEntry(names.get(i)))) {
+                        assertArrayEquals(layer(batch.getLayer(types[i])), stream.readAllBytes());
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        // Archive has no time of writing in it
+        assertArrayEquals(data, write(batch, false));
+        assertArrayEquals(data, write(batch, true));
+    }
+
+    @Test
+    void writeMergedTest() throws IOException, GerberException, MergerException {
+        // Panel merged again is written to the same bytes
+        var source = batch();
+        var archives = new ArrayList<byte[]>();
+        for (var i = 0; i < 2; i++) {
+            var merger = new BatchMerger("panel");
+            var id = UUID.randomUUID();
+            merger.addBatch(id, source);
+            merger.addBatchInstance(UUID.randomUUID(), id, 0, 0);
+            merger.addBatchInstance(UUID.randomUUID(), id, 20, 0);
+            merger.merge();
+            archives.add(write(merger.getMergedBatch(), false));
+        }
+        assertArrayEquals(archives.get(0), archives.get(1));
+    }
+}
@@ -0,0 +1,53 @@
+package ru.futurelink.gerber.panelizer.test.canvas;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.canvas.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class GeometryIndexTest {
+    @Test
+    void queryTest() {
+        var random = new Random(1);
+        var geometry = new ArrayList<Geometry>();
+        for (var i = 0; i < 5000; i++) {
+            var start = new Point(random.nextDouble() * 300, random.nextDouble() * 200);
+            var end = start.offset(random.nextDouble() * 20 - 10, random.nextDouble() * 20 - 10);
+            if (i % 5 == 0) {
+                geometry.add(new Arc(start, end, random.nextDouble() * 4 - 2, random.nextDouble() * 4 - 2,
+                        Geometry.Interpolation.CW, 10, Geometry.QuadrantMode.MULTI));
+            } else {
+                geometry.add(new Line(start, end, 10));
+            }
+        }
+        // A long edge crossing the whole area
+        geometry.add(new Line(new Point(-10, 100), new Point(310, 100), 10));
+        var index = new GeometryIndex(geometry);
+
+        for (var q = 0; q < 500; q++) {
+            var x = random.nextDouble() * 320 - 10;
+            var y = random.nextDouble() * 220 - 10;
+            var size = random.nextDouble() * 10;
+            var expected = new ArrayList<Geometry>();
+            for (var g : geometry) {
+                if (overlaps(g, x, y, x + size, y + size)) expected.add(g);
+            }
+            var actual = index.query(new Point(x + size, y), new Point(x, y + size));
+            // Index may give arcs by bounds of their circles
+            assertTrue(actual.containsAll(expected));
+            for (var g : actual) assertTrue(expected.contains(g) || (g instanceof Arc));
+            if ((y <= 100) && (y + size >= 100)) assertTrue(actual.contains(geometry.get(geometry.size() - 1)));
+        }
+        assertTrue(new GeometryIndex(new ArrayList<>()).query(0, 0, 1, 1).isEmpty());
+    }
+
+    private boolean overlaps(Geometry g, double x0, double y0, double x1, double y1) {
+        return (Math.min(g.getStart().getX(), g.getEnd().getX()) <= x1) &&
+                (Math.max(g.getStart().getX(), g.getEnd().getX()) >= x0) &&
+                (Math.min(g.getStart().getY(), g.getEnd().getY()) <= y1) &&
+                (Math.max(g.getStart().getY(), g.getEnd().getY()) >= y0);
+    }
+}
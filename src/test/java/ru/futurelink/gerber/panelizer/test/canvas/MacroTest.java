@@ -4,6 +4,8 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import org.junit.jupiter.api.Test;
 import ru.futurelink.gerber.panelizer.canvas.Macro;
+import ru.futurelink.gerber.panelizer.canvas.MacroExpression;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AM;
 
 public class MacroTest {
         @Test
@@ -32,4 +34,36 @@ public class MacroTest {
             assertEquals(7.0, r.getValue(1));
             assertEquals(56.0, r.getValue(2));
         }
+
+        @Test
+        void expressionTest() {
+            var vars = new double[] { 1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 8.0, 9.0, 10.0, 11.0 };
+            assertEquals(10.0, MacroExpression.compile("$10").eval(vars));
+            assertEquals(12.0, MacroExpression.compile("$11+$1").eval(vars));
+            assertEquals(-5.0, MacroExpression.compile("-($2 + $3) x (4 - $3)").eval(vars));
+            assertEquals(7.0, MacroExpression.compile("1+2x3").eval(vars));
+            assertEquals(8.0, MacroExpression.compile("$2^3").eval(vars));
+            assertEquals(0.0, MacroExpression.compile("$20").eval(vars));
+            assertEquals(11, MacroExpression.compile("$11x2").maxVariable());
+            assertThrows(RuntimeException.class, () -> MacroExpression.compile("$1+"));
+        }
+
+        @Test
+        void macroTest() {
+            var am = AM.fromString("AMBOX*0 comment*$3=$1x0.5*21,1,$1,$2,0,0,0*1,1,$3,0,0*");
+            var macro = Macro.compile(am);
+            assertSame(macro, Macro.compile(am.rename("OTHER")));
+            assertEquals(2, macro.getOperations().size());
+
+            var params = new double[] { 2.0, 1.0 };
+            var r = macro.eval(params);
+            assertEquals(Macro.Operation.Type.CenterLine, r.get(0).getType());
+            assertEquals(2.0, r.get(0).getValue(0));
+            assertEquals(Macro.Operation.Type.Circle, r.get(1).getType());
+            assertEquals(1.0, r.get(1).getValue(0));
+            assertArrayEquals(new double[] { 2.0, 1.0 }, params);
+
+            Macro.clearCompiled();
+            assertNotSame(macro, Macro.compile(am));
+        }
 }
@@ -0,0 +1,62 @@
+package ru.futurelink.gerber.panelizer.test.drl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.drl.DrillPathOptimizer;
+import ru.futurelink.gerber.panelizer.drl.Excellon;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRouted;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+public class DrillPathOptimizerTest {
+    private ArrayList<String> holes(Excellon drl, double diameter) {
+        var holes = new ArrayList<String>();
+        for (var h : drl.holesOfDiameter(diameter)) holes.add(h.getX() + ":" + h.getY() + ":" + h.getClass());
+        return holes;
+    }
+
+    @Test
+    void optimizeTest() throws InterruptedException, ExecutionException {
+        var random = new Random(1);
+        var drl = new Excellon("drill");
+        for (var i = 0; i < 6000; i++) {
+            drl.addHole(random.nextDouble() * 300, random.nextDouble() * 200, 0.3 + 0.1 * (i % 3));
+        }
+        var slot = new HoleRouted(10, 10, 0.3);
+        slot.addPoint(12, 10);
+        drl.addHole(slot);
+        drl.addHole(5, 5, 2.0);
+
+        var optimizer = new DrillPathOptimizer();
+        var optimized = optimizer.optimize(drl);
+        assertEquals(drl.getHoleCount(), optimized.getHoleCount());
+        assertTrue(optimizer.getTravelAfter() < optimizer.getTravelBefore() / 5);
+
+        // Tools keep their order, each tool has the same holes
+        var tools = optimized.tools();
+        for (var d : new double[] { 0.3, 0.4, 0.5, 2.0 }) {
+            assertEquals(d, tools.next().getDiameter(), 1e-9);
+            var expected = holes(drl, d);
+            var actual = holes(optimized, d);
+            if (expected.size() > 1) assertNotEquals(expected, actual);
+            expected.sort(null);
+            actual.sort(null);
+            assertEquals(expected, actual);
+        }
+        assertFalse(tools.hasNext());
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var parallel = new DrillPathOptimizer();
+            var result = parallel.optimize(drl, executor);
+            assertEquals(optimizer.getTravelAfter(), parallel.getTravelAfter());
+            assertEquals(holes(optimized, 0.3), holes(result, 0.3));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.futurelink.gerber.panelizer.test.drl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.drl.Excellon;
+import ru.futurelink.gerber.panelizer.drl.ExcellonReader;
+import ru.futurelink.gerber.panelizer.drl.ExcellonWriter;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRouted;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class ExcellonReaderTest {
+    private Excellon read(String str) throws IOException {
+        return new ExcellonReader(new ByteArrayInputStream(str.getBytes(StandardCharsets.US_ASCII))).read("drill");
+    }
+
+    @Test
+    void readTest() throws IOException {
+        var drl = read("M48\r\nMETRIC\r\nT1C0.800\r\nT2C1.2\r\n%\r\nG90\r\nG05\r\n" +
+                "T1\r\nX1.0Y-2.5\r\nY3 X4\r\nX7.0\r\nX1X2\r\n" +
+                "T2\r\nG00X5.0Y5.0\r\nM15\r\nG01X6.0Y5.0\r\nG01X6.0Y6.0\r\nM16\r\nG05\r\nX0.001Y10\r\nT0\r\nM30\r\n");
+
+        assertEquals(4, drl.getHoleCount());
+        var t1 = drl.holesOfDiameter(0.8);
+        assertEquals(2, t1.size());
+        assertEquals(1.0, t1.get(0).getX());
+        assertEquals(-2.5, t1.get(0).getY());
+        assertEquals(4.0, t1.get(1).getX());
+        assertEquals(3.0, t1.get(1).getY());
+
+        var t2 = drl.holesOfDiameter(1.2);
+        assertEquals(2, t2.size());
+        var slot = (HoleRouted) t2.get(0);
+        assertEquals(5.0, slot.getX());
+        var points = slot.points();
+        assertEquals(6.0, points.next().getX());
+        assertEquals(6.0, points.next().getY());
+        assertFalse(points.hasNext());
+        assertEquals(0.001, t2.get(1).getX());
+    }
+
+    @Test
+    void readUntilEndOfStreamTest() throws IOException {
+        var data = "M48\nMETRIC\nT1C0.800\n%\nG90\nG05\nT1\nX1.0Y2.0\nX3.0Y4.0\nT0\nM30\n".getBytes(StandardCharsets.US_ASCII);
+        // Stream gives data by small chunks and is never ready, as inflater streams do
+        var stream = new InputStream() {
+            private int pos;
+
+            @Override
+            public int read() {
+                return (pos < data.length) ? data[pos++] : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (pos >= data.length) return -1;
+                b[off] = data[pos++];
+                return 1;
+            }
+
+            @Override
+            public int available() {
+                return 0;
+            }
+        };
+        assertEquals(2, new ExcellonReader(stream).read("drill").getHoleCount());
+    }
+
+    @Test
+    void readWrittenTest() throws IOException {
+        var random = new Random(1);
+        var drl = new Excellon("drill");
+        for (var i = 0; i < 10000; i++) {
+            drl.addHole(Math.round((random.nextDouble() - 0.5) * 600000) / 1000.0,
+                    Math.round(random.nextDouble() * 200000) / 1000.0, 0.3 + 0.1 * random.nextInt(10));
+        }
+        var bytes = new ByteArrayOutputStream();
+        new ExcellonWriter(bytes).write(drl);
+        var read = new ExcellonReader(new ByteArrayInputStream(bytes.toByteArray())).read("drill");
+
+        var expected = drl.holes();
+        var actual = read.holes();
+        while (expected.hasNext()) {
+            var e = expected.next();
+            var a = actual.next();
+            assertEquals(e.getX(), a.getX());
+            assertEquals(e.getY(), a.getY());
+            assertEquals(Math.round(e.getDiameter() * 1000) / 1000.0, a.getDiameter());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
@@ -0,0 +1,38 @@
+package ru.futurelink.gerber.panelizer.test.drl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.drl.Excellon;
+import ru.futurelink.gerber.panelizer.drl.ExcellonWriter;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRound;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRouted;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class ExcellonWriterTest {
+    @Test
+    void writeTest() throws IOException {
+        var drl = new Excellon("drill");
+        drl.addHole(new HoleRound(1.0, 2.0, 0.8));
+        drl.addHole(-0.0004, 10.2345, 1.0);
+        var slot = new HoleRouted(5.0, 5.0, 0.8);
+        drl.addHole(slot);
+        slot.addPoint(6.0, 5.0);
+        drl.addHole(3.0, 4.0, 0.8);
+
+        assertEquals(4, drl.getHoleCount());
+        assertEquals(3, drl.holesOfDiameter(0.8).size());
+        assertSame(slot, drl.holesOfDiameter(0.8).get(1));
+        assertEquals(4.0, drl.holesOfDiameter(0.8).get(2).getY());
+        assertTrue(drl.holesOfDiameter(0.5).isEmpty());
+
+        var bytes = new ByteArrayOutputStream();
+        new ExcellonWriter(bytes).write(drl);
+        assertEquals("M48\nFMAT,2\nMETRIC\nT1C0.800\nT2C1.000\n%\nG90\nG05\n" +
+                "T1\nX1.000Y2.000\nG00X5.000Y5.000\nM15\nG01X6.000Y5.000\nM16\nG05\nX3.000Y4.000\n" +
+                "T2\nX0.000Y10.235\nT0\nM30\n", bytes.toString(StandardCharsets.US_ASCII));
+    }
+}
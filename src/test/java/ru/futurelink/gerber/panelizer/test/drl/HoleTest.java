@@ -0,0 +1,29 @@
+package ru.futurelink.gerber.panelizer.test.drl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.canvas.Point;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRound;
+import ru.futurelink.gerber.panelizer.drl.holes.HoleRouted;
+
+public class HoleTest {
+    @Test
+    void equalsTest() {
+        var hole = new HoleRound(1, 1, 0.3);
+        assertEquals(hole, new HoleRound(1, 1, 0.3));
+        assertEquals(hole.hashCode(), new HoleRound(1, 1, 0.3).hashCode());
+        assertNotEquals(hole, new HoleRound(1, 1, 2.0));
+        assertNotEquals(hole, new HoleRound(1, 2, 0.3));
+        assertNotEquals(hole, new HoleRouted(1, 1, 0.3));
+        assertNotEquals(hole, new Point(1, 1));
+        assertNotEquals(new Point(1, 1), hole);
+
+        // Routed holes are the same if their paths are
+        var routed = new HoleRouted(0, 0, 1.0);
+        routed.addPoint(5, 0);
+        assertEquals(routed, routed.offset(0, 0));
+        assertEquals(routed.hashCode(), routed.offset(0, 0).hashCode());
+        assertNotEquals(routed, new HoleRouted(0, 0, 1.0));
+    }
+}
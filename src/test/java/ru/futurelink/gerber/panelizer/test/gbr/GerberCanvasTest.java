@@ -0,0 +1,159 @@
+package ru.futurelink.gerber.panelizer.test.gbr;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.canvas.Point;
+import ru.futurelink.gerber.panelizer.canvas.fetaures.Feature;
+import ru.futurelink.gerber.panelizer.canvas.fetaures.MouseBites;
+import ru.futurelink.gerber.panelizer.exceptions.MergerException;
+import ru.futurelink.gerber.panelizer.gbr.CommandStore;
+import ru.futurelink.gerber.panelizer.gbr.Gerber;
+import ru.futurelink.gerber.panelizer.gbr.GerberCanvas;
+import ru.futurelink.gerber.panelizer.gbr.cmd.FS;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AD;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
+import ru.futurelink.gerber.panelizer.gbr.cmd.g.GCode;
+import ru.futurelink.gerber.panelizer.gbr.cmd.t.TF;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+public class GerberCanvasTest {
+    // Outlines of three boards 10x10 mm placed 2 mm apart
+    private Gerber outline() {
+        var g = new Gerber("outline");
+        g.add(new TF(TF.FileFunction, "Profile", "NP"));
+        g.add(new FS(true, true));
+        g.add(new AD(10, "C", "0.1"));
+        g.add(new GCode(1, ""));
+        g.add(new DAperture(10));
+        for (var x = 0; x < 36; x += 12) {
+            g.add(2, x, 0);
+            g.add(1, x + 10, 0);
+            g.add(1, x + 10, 10);
+            g.add(1, x, 10);
+            g.add(1, x, 0);
+        }
+        return g;
+    }
+
+    private String write(GerberCanvas canvas) throws MergerException {
+        var g = new Gerber("result");
+        canvas.writeToGerber(g);
+        return g.getContents().toString();
+    }
+
+    // Straight segments written by the canvas, arcs of features are skipped
+    private List<String> segments(GerberCanvas canvas) throws MergerException {
+        var g = new Gerber("result");
+        canvas.writeToGerber(g);
+        var list = new ArrayList<String>();
+        var c = g.contents();
+        double x = 0, y = 0;
+        while (c.next()) {
+            if ((c.getOpcode() == CommandStore.DRAW) && !c.isArc()) {
+                list.add(String.format(Locale.ROOT, "%.2f,%.2f-%.2f,%.2f", x, y, c.getX(), c.getY()));
+            }
+            if ((c.getOpcode() == CommandStore.MOVE) || (c.getOpcode() == CommandStore.DRAW)) {
+                x = c.getX();
+                y = c.getY();
+            }
+        }
+        return list;
+    }
+
+    @Test
+    void featureGeometryTest() throws MergerException {
+        // Edges of two gaps, the bites of radius 1.25 cut 1.5 mm out of each edge
+        var canvas = new GerberCanvas();
+        for (var x : new int[] { 10, 12, 22, 24 }) {
+            canvas.move(new Point(x, 0));
+            canvas.drawLine(new Point(x, 10));
+        }
+        var bites = new MouseBites(UUID.randomUUID(), new Point(11, 5), 1.25);
+        canvas.addFeature(bites);
+        canvas.recalculate(Layer.Type.EdgeCuts);
+        assertEquals(List.of(
+                "10.00,0.00-10.00,4.25", "10.00,5.75-10.00,10.00",
+                "12.00,0.00-12.00,4.25", "12.00,5.75-12.00,10.00",
+                "22.00,0.00-22.00,10.00", "24.00,0.00-24.00,10.00"), segments(canvas));
+
+        // Pierces go with the feature to the other gap
+        bites.moveOffset(12, 0);
+        canvas.recalculate(Layer.Type.EdgeCuts);
+        var moved = List.of(
+                "10.00,0.00-10.00,10.00", "12.00,0.00-12.00,10.00",
+                "22.00,0.00-22.00,4.25", "22.00,5.75-22.00,10.00",
+                "24.00,0.00-24.00,4.25", "24.00,5.75-24.00,10.00");
+        assertEquals(moved, segments(canvas));
+
+        // Line drawn later is not pierced until the features are recalculated
+        canvas.move(new Point(22, 10));
+        canvas.drawLine(new Point(22, 0));
+        var drawn = new ArrayList<>(moved);
+        drawn.add("22.00,10.00-22.00,0.00");
+        assertEquals(drawn, segments(canvas));
+
+        // Feature without calculated geometry does not pierce anything
+        canvas.addFeature(new MouseBites(UUID.randomUUID(), new Point(11, 5), 1.25));
+        assertEquals(drawn, segments(canvas));
+
+        // Removed feature leaves all lines whole
+        canvas.setFeatures(List.of());
+        assertEquals(List.of(
+                "10.00,0.00-10.00,10.00", "12.00,0.00-12.00,10.00",
+                "22.00,0.00-22.00,10.00", "24.00,0.00-24.00,10.00",
+                "22.00,10.00-22.00,0.00"), segments(canvas));
+
+        // Map is built again from the features set back
+        canvas.setFeatures(List.of(bites));
+        assertEquals(drawn, segments(canvas));
+    }
+
+    @Test
+    void recalculateMovedFeaturesTest() throws MergerException {
+        var b1 = new MouseBites(UUID.randomUUID(), new Point(11, 5), 2);
+        var b2 = new MouseBites(UUID.randomUUID(), new Point(23, 5), 2);
+        List<Feature> features = List.of(b1, b2);
+        var canvas = new GerberCanvas();
+        canvas.setFeatures(features);
+
+        canvas.draw(outline());
+        assertEquals(2, canvas.getRecalculatedFeatures());
+        assertTrue(b1.isValid());
+        var first = write(canvas);
+
+        // The same geometry drawn again keeps calculated features
+        canvas.draw(outline());
+        assertEquals(0, canvas.getRecalculatedFeatures());
+        assertEquals(first, write(canvas));
+
+        b1.moveOffset(0, 2);
+        canvas.draw(outline());
+        assertEquals(1, canvas.getRecalculatedFeatures());
+        assertTrue(b1.isValid());
+        var moved = write(canvas);
+        assertNotEquals(first, moved);
+
+        // Result is the same as calculated from scratch
+        var fresh = new GerberCanvas();
+        fresh.setFeatures(features);
+        fresh.draw(outline());
+        assertEquals(2, fresh.getRecalculatedFeatures());
+        assertEquals(moved, write(fresh));
+    }
+
+    @Test
+    void featureMoveTest() {
+        var bites = new MouseBites(UUID.randomUUID(), new Point(10, 5), 2);
+        bites.moveOffset(1, 3);
+        assertEquals(9.0, bites.getTopLeft().getX());
+        assertEquals(6.0, bites.getTopLeft().getY());
+        assertEquals(13.0, bites.getBottomRight().getX());
+        assertEquals(10.0, bites.getBottomRight().getY());
+    }
+}
@@ -0,0 +1,71 @@
+package ru.futurelink.gerber.panelizer.test.gbr;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.exceptions.GerberException;
+import ru.futurelink.gerber.panelizer.gbr.Gerber;
+import ru.futurelink.gerber.panelizer.gbr.GerberMerger;
+import ru.futurelink.gerber.panelizer.gbr.GerberReader;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AD;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AM;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+
+public class GerberMergerTest {
+    private Gerber read(String macro, String apertures) throws IOException, GerberException {
+        var contents = "%TF.FileFunction,Copper,L1,Top*%\n" +
+                "%FSLAX46Y46*%\n" +
+                "%MOMM*%\n" +
+                "%AMBox*\n" + macro + "*%\n" +
+                apertures +
+                "G01*\n" +
+                "D10*\n" +
+                "X0Y0D03*\n" +
+                "D11*\n" +
+                "X1000000Y0D03*\n";
+        return new GerberReader(new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8))).read("test");
+    }
+
+    @Test
+    void mergeAperturesTest() throws IOException, GerberException {
+        var merger = new GerberMerger(Layer.Type.FrontCopper, "merged");
+        var a = read("21,1,$1,$2,0,0,0", "%ADD10C,0.1*%\n%ADD11Box,1X2*%\n");
+        var b = read("0 Comment*\n21,1,$1,$2,0,0,0", "%ADD10Box,1X2*%\n%ADD11C,0.2*%\n");
+        var c = read("1,1,$1,0,0", "%ADD10C,0.2*%\n%ADD11Box,1X2*%\n");
+        for (var i = 0; i < 10; i++) {
+            merger.add(a, i, 0);
+            merger.add(b, i, 10);
+            merger.add(c, i, 20);
+        }
+
+        // Equal macros are merged, macro with the same name and other body is renamed
+        var layer = merger.getLayer();
+        assertEquals(2, layer.getMacros().size());
+        assertEquals("Box", ((AM) layer.getMacros().get(0)).getName());
+        assertEquals("Box_1", ((AM) layer.getMacros().get(1)).getName());
+
+        assertEquals(4, layer.getApertures().size());
+        var codes = new HashSet<Integer>();
+        for (var cmd : layer.getApertures()) codes.add(((AD) cmd).getCode());
+        assertEquals(4, codes.size());
+        assertEquals("Box_1", ((AD) layer.getApertures().get(3)).getMacro());
+
+        // Box from the second board is the same aperture as from the first one
+        var contents = layer.getContents();
+        assertEquals(11, ((DAperture) contents.get(3)).getCode());
+        assertEquals(11, ((DAperture) contents.get(6)).getCode());
+        assertEquals(13, ((DAperture) contents.get(13)).getCode());
+
+        merger.clean();
+        assertEquals(0, merger.getLayer().getApertures().size());
+        merger.add(c, 0, 0);
+        assertEquals("Box", ((AM) merger.getLayer().getMacros().get(0)).getName());
+        assertEquals(10, ((AD) merger.getLayer().getApertures().get(0)).getCode());
+    }
+}
@@ -0,0 +1,113 @@
+package ru.futurelink.gerber.panelizer.test.gbr;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.Layer;
+import ru.futurelink.gerber.panelizer.exceptions.GerberException;
+import ru.futurelink.gerber.panelizer.gbr.Gerber;
+import ru.futurelink.gerber.panelizer.gbr.GerberReader;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AD;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AM;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.D01To03;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
+import ru.futurelink.gerber.panelizer.gbr.cmd.g.GCode;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class GerberReaderTest {
+    private final static String header =
+            "%TF.GenerationSoftware,KiCad,Pcbnew,6.0.7*%\r\n" +
+            "%TF.FileFunction,Copper,L1,Top*%\r\n" +
+            "%FSLAX46Y46*%\r\n" +
+            "G04 Gerber Fmt 4.6, Leading zero omitted*\r\n" +
+            "%MOMM*%\r\n" +
+            "%AMRoundRect*\r\n" +
+            "0 Rectangle with rounded corners*\r\n" +
+            "1,1,$1+$1,$2,$3*%\r\n" +
+            "%ADD10C,0.100000*%\r\n" +
+            "%ADD11RoundRect,0.25X-0.5X0.5*%\r\n" +
+            "G01*\r\n";
+
+    private Gerber read(String contents) throws IOException, GerberException {
+        return new GerberReader(new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8))).read("test");
+    }
+
+    @Test
+    void readCommandsTest() throws IOException, GerberException {
+        var g = read(header +
+                "D10*\r\n" +
+                "X1000000Y-2500000D02*\r\n" +
+                "X123456789Y2000000D01*\r\n" +
+                "G03*\r\n" +
+                "X0Y0I-500000J1D01*\r\n" +
+                "D11*\r\n" +
+                "X5Y5D03*\r\n" +
+                "M02*\r\n");
+
+        assertEquals(Layer.Type.FrontCopper, g.getLayerType());
+        assertNotNull(g.getFS());
+        assertNotNull(g.getMO());
+        assertEquals(1, g.getMacros().size());
+        assertEquals("RoundRect", ((AM) g.getMacros().get(0)).getName());
+        assertEquals(2, g.getApertures().size());
+        assertEquals("RoundRect", ((AD) g.getApertures().get(1)).getMacro());
+
+        var c = g.getContents();
+        assertEquals(8, c.size());
+        assertEquals(1, ((GCode) c.get(0)).getCode());
+        assertEquals(10, ((DAperture) c.get(1)).getCode());
+
+        var d = (D01To03) c.get(2);
+        assertEquals(2, d.getCode());
+        assertEquals(1.0, d.getX());
+        assertEquals(-2.5, d.getY());
+        assertNull(d.getI());
+
+        d = (D01To03) c.get(3);
+        assertEquals(1, d.getCode());
+        assertEquals(123.456789, d.getX());
+        assertEquals(2.0, d.getY());
+
+        assertEquals(3, ((GCode) c.get(4)).getCode());
+        d = (D01To03) c.get(5);
+        assertEquals(-0.5, d.getI());
+        assertEquals(0.000001, d.getJ());
+
+        assertEquals(11, ((DAperture) c.get(6)).getCode());
+        d = (D01To03) c.get(7);
+        assertEquals(3, d.getCode());
+        assertEquals(0.000005, d.getX());
+
+        assertEquals(-2.5, g.getMinY());
+        assertEquals(123.456789, g.getMaxX());
+    }
+
+    @Test
+    void readAcrossBufferTest() throws IOException, GerberException {
+        // Commands must be read the same way when they cross the tokenizer window
+        var builder = new StringBuilder(header).append("D10*\n");
+        var count = 30000;
+        for (var i = 0; i < count; i++) {
+            builder.append("X").append(i).append("000Y-").append(i).append("D01*\n");
+        }
+        builder.append("%ADD12C,").append("0".repeat(200000)).append(".5*%\n");
+        builder.append("X1Y2D02*");
+
+        var g = read(builder.toString());
+        var c = g.getContents();
+        assertEquals(count + 3, c.size());
+        var d = (D01To03) c.get(count + 1);
+        assertEquals((count - 1) / 1000.0, d.getX());
+        assertEquals(-(count - 1) / 1000000.0, d.getY());
+        assertEquals(3, g.getApertures().size());
+        assertEquals(0.000002, ((D01To03) c.get(count + 2)).getY());
+    }
+
+    @Test
+    void readWithoutFormatTest() {
+        assertThrows(GerberException.class, () -> read("X1Y1D01*\n"));
+    }
+}
@@ -0,0 +1,172 @@
+package ru.futurelink.gerber.panelizer.test.gbr;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.gbr.CommandStore;
+import ru.futurelink.gerber.panelizer.gbr.Gerber;
+import ru.futurelink.gerber.panelizer.gbr.cmd.FS;
+import ru.futurelink.gerber.panelizer.gbr.cmd.MO;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AD;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AM;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.D01To03;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
+import ru.futurelink.gerber.panelizer.gbr.cmd.g.GCode;
+import ru.futurelink.gerber.panelizer.gbr.cmd.l.LP;
+import ru.futurelink.gerber.panelizer.gbr.cmd.t.TA;
+import ru.futurelink.gerber.panelizer.gbr.cmd.t.TD;
+import ru.futurelink.gerber.panelizer.gbr.cmd.t.TF;
+import ru.futurelink.gerber.panelizer.gbr.cmd.t.TO;
+
+import java.util.List;
+import java.util.Map;
+
+public class GerberTest {
+    @Test
+    void sectionsTest() {
+        var g = new Gerber("test");
+        var fs = new FS(true, true);
+        var copper = new TF(TF.FileFunction, "Copper", "L1", "Top");
+        var mo = new MO(MO.Mode.MM);
+        var profile = new TF(TF.FileFunction, "Profile", "NP");
+        var part = new TF(".Part", "Single");
+        var box = AM.fromString("AMBOX*21,1,$1,$2,0,0,0*");
+        var ad15 = new AD(15, "BOX", "1X2");
+        var ad11 = new AD(11, "C", "0.1");
+        var aperture = new DAperture(15);
+        var draw = new D01To03(1, 3.0, 4.0);
+
+        g.add(fs);
+        g.add(copper);
+        g.add(mo);
+        g.add(new GCode(4, " Comment"));
+        g.add(profile);
+        g.add(part);
+        assertEquals(10, g.getApertureLastIndex());
+        assertFalse(g.hasMacro("BOX"));
+        g.add(box);
+        assertTrue(g.hasMacro("BOX"));
+        g.add(ad15);
+        assertEquals(15, g.getApertureLastIndex());
+        g.add(ad11);
+        assertEquals(15, g.getApertureLastIndex());
+        g.add(new TA(".AperFunction", "Conductor"));
+        g.add(TO.fromString("TO.C,R1*"));
+        g.add(aperture);
+        g.add(draw);
+        g.add(new TD(".AperFunction"));
+
+        // Commands go into their sections in the order they were added
+        assertEquals(List.of(fs, copper, mo, profile, part), g.getHeader());
+        assertEquals(List.of(box), g.getMacros());
+        assertEquals(List.of(ad15, ad11), g.getApertures());
+        assertSame(fs, g.getFS());
+        assertSame(mo, g.getMO());
+
+        // The first file attribute is the one used
+        assertEquals("Copper,L1,Top", g.getTF(TF.FileFunction));
+        assertEquals("Single", g.getTF(".Part"));
+
+        // Comments and object attributes are not kept
+        var contents = g.getContents();
+        assertEquals(2, contents.size());
+        assertEquals(15, ((DAperture) contents.get(0)).getCode());
+        assertEquals(4.0, ((D01To03) contents.get(1)).getY());
+    }
+
+    @Test
+    void contentsStoreTest() {
+        var g = new Gerber("test");
+        g.add(new FS(true, true));
+        g.add(new GCode(4, " Comment"));
+        g.add(new LP(LP.Polarity.DARK));
+        g.add(new DAperture(10));
+        g.add(new GCode(1, ""));
+        g.add(2, 1.5, -2.5);
+        g.add(new D01To03(1, 3.0, 4.0));
+        g.add(1, 0.0, 0.0, -1.0, null);
+        g.add(3, 5.0, 5.0);
+
+        // Header commands and comments are not contents
+        assertNotNull(g.getFS());
+        assertEquals(7, g.getContents().size());
+        assertEquals(-2.5, g.getMinY());
+        assertEquals(5.0, g.getMaxX());
+
+        var c = g.contents();
+        assertTrue(c.next());
+        assertEquals(CommandStore.OTHER, c.getOpcode());
+        assertTrue(c.getCommand() instanceof LP);
+        assertTrue(c.next());
+        assertEquals(CommandStore.APERTURE, c.getOpcode());
+        assertEquals(10, c.getCode());
+        assertTrue(c.next());
+        assertEquals(CommandStore.GCODE, c.getOpcode());
+        assertEquals(1, c.getCode());
+        assertTrue(c.next());
+        assertEquals(CommandStore.MOVE, c.getOpcode());
+        assertEquals(2, c.getCode());
+        assertEquals(1.5, c.getX());
+        assertFalse(c.isArc());
+        assertTrue(c.next());
+        assertEquals(CommandStore.DRAW, c.getOpcode());
+        assertEquals(4.0, c.getY());
+        assertTrue(c.next());
+        assertTrue(c.isArc());
+        assertEquals(-1.0, c.getI());
+        assertNull(c.getJ());
+        assertTrue(c.next());
+        assertEquals(CommandStore.FLASH, c.getOpcode());
+        assertFalse(c.next());
+
+        // Command objects are made on demand
+        var d = (D01To03) g.getContents().get(5);
+        assertEquals(1, d.getCode());
+        assertEquals(-1.0, d.getI());
+        assertNull(d.getJ());
+        assertEquals("X0Y0I-1000000D01*", d.toString(g.getFS()));
+
+        g.clean();
+        assertEquals(0, g.getContents().size());
+        assertFalse(g.contents().next());
+    }
+
+    @Test
+    void contentsViewTest() {
+        var store = new CommandStore();
+        store.addAperture(10);
+        store.addDraw(2, 1.0, 2.0);
+        store.addAperture(11);
+        store.addDraw(3, 3.0, 4.0);
+
+        // View moves coordinates and changes aperture codes as they are read
+        var view = store.view(10, 20, Map.of(10, 15));
+        var g = new Gerber("test");
+        g.add(view);
+        g.add(view.translated(100, 0));
+        g.add(new DAperture(12));
+        assertEquals(9, g.getContents().size());
+        assertEquals(11.0, g.getMinX());
+        assertEquals(113.0, g.getMaxX());
+        assertEquals(24.0, g.getMaxY());
+
+        var c = g.contents();
+        assertTrue(c.next());
+        assertEquals(15, c.getCode());
+        assertTrue(c.next());
+        assertEquals(11.0, c.getX());
+        assertEquals(22.0, c.getY());
+        assertTrue(c.next());
+        assertEquals(11, c.getCode());
+        var d = (D01To03) g.getContents().get(7);
+        assertEquals(113.0, d.getX());
+        assertEquals(12, ((DAperture) g.getContents().get(8)).getCode());
+
+        // Views are read only, the store can still be changed without changing them
+        assertThrows(IllegalStateException.class, () -> view.addAperture(12));
+        store.clear();
+        store.addDraw(2, 0, 0);
+        assertEquals(4, view.size());
+        assertEquals(9, g.getContents().size());
+    }
+}
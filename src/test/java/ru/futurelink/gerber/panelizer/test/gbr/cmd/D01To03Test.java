@@ -0,0 +1,80 @@
+package ru.futurelink.gerber.panelizer.test.gbr.cmd;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.gbr.cmd.FS;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.D01To03;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+public class D01To03Test {
+    private double parseX(String val, FS format) {
+        return D01To03.parseX(val.toCharArray(), 0, val.length(), format);
+    }
+
+    @Test
+    void parseLeadingZeroesOmittedTest() {
+        var format = FS.fromString("FSLAX46Y46*");
+        assertEquals(1.0, parseX("1000000", format));
+        assertEquals(-0.000001, parseX("-1", format));
+        assertEquals(0.0, parseX("-0", format));
+        assertEquals(123.456789, parseX("+123456789", format));
+        assertEquals(0.1, parseX("0000100000", format));
+
+        // Results must be exactly the same as of decimal conversion
+        var random = new Random(1);
+        for (var i = 0; i < 100000; i++) {
+            var val = Long.toString(random.nextLong() % 10000000000000L);
+            assertEquals(new BigDecimal(val).movePointLeft(6).doubleValue(), parseX(val, format));
+        }
+    }
+
+    @Test
+    void parseTrailingZeroesOmittedTest() {
+        var format = FS.fromString("FSTAX24Y24*");
+        assertTrue(format.getOmitTrailingZeroes());
+        assertFalse(format.getOmitLeadingZeroes());
+        assertEquals("%FSTAX24Y24*%", format.toString());
+
+        assertEquals(12.0, parseX("12", format));
+        assertEquals(1.5, parseX("015", format));
+        assertEquals(-0.25, parseX("-0025", format));
+        assertEquals(1.2345, parseX("012345", format));
+        assertEquals(10.0, parseX("1", format));
+    }
+
+    @Test
+    void parseInvalidTest() {
+        var format = FS.fromString("FSLAX46Y46*");
+        assertThrows(NumberFormatException.class, () -> parseX("", format));
+        assertThrows(NumberFormatException.class, () -> parseX("-", format));
+        assertThrows(NumberFormatException.class, () -> parseX("12a4", format));
+    }
+
+    @Test
+    void formatTest() {
+        var format = FS.fromString("FSLAX46Y46*");
+        // Coordinates are rounded, halves away from zero, they used to be truncated to 133556788
+        assertEquals("X133556789Y-1D01*", D01To03.toString(format, 1, 133.556788999999, -0.0000005, null, null));
+        assertEquals("X0Y0I-1500000J2D03*", D01To03.toString(format, 3, 0.0, -0.0, -1.5, 0.0000019));
+
+        // Formatted value is read back as the nearest value of the format
+        var random = new Random(1);
+        for (var i = 0; i < 100000; i++) {
+            var val = (random.nextDouble() - 0.5) * 2000;
+            var str = D01To03.toString(format, 2, val, 0, null, null);
+            assertEquals(BigDecimal.valueOf(val).setScale(6, RoundingMode.HALF_UP).doubleValue(),
+                    parseX(str.substring(1, str.indexOf('Y')), format), 1e-9);
+        }
+
+        var trailing = FS.fromString("FSTAX24Y24*");
+        assertEquals("X015Y-12D02*", D01To03.toString(trailing, 2, 1.5, -12, null, null));
+        assertEquals("X0Y0D02*", D01To03.toString(trailing, 2, 0, 0, null, null));
+
+        var padded = FS.fromString("FSAX24Y24*");
+        assertEquals("X015000Y-120000D02*", D01To03.toString(padded, 2, 1.5, -12, null, null));
+    }
+}
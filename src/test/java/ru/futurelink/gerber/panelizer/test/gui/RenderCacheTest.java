@@ -0,0 +1,84 @@
+package ru.futurelink.gerber.panelizer.test.gui;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.qt.gui.QPainterPath;
+import org.junit.jupiter.api.Test;
+import ru.futurelink.gerber.panelizer.canvas.Aperture;
+import ru.futurelink.gerber.panelizer.gbr.Gerber;
+import ru.futurelink.gerber.panelizer.gbr.cmd.FS;
+import ru.futurelink.gerber.panelizer.gbr.cmd.a.AD;
+import ru.futurelink.gerber.panelizer.gbr.cmd.d.DAperture;
+import ru.futurelink.gerber.panelizer.gbr.cmd.g.GCode;
+import ru.futurelink.gerber.panelizer.gui.RenderCache;
+
+import java.util.HashMap;
+
+public class RenderCacheTest {
+    private RenderCache.Recorded record(Gerber g) {
+        var apertures = new HashMap<Integer, Aperture>();
+        apertures.put(10, new Aperture("C", "0.1"));
+        apertures.put(11, new Aperture("C", "0.5"));
+        return new RenderCache().get(g, apertures);
+    }
+
+    private Gerber gerber() {
+        var g = new Gerber("copper");
+        g.add(new FS(true, true));
+        g.add(new AD(10, "C", "0.1"));
+        g.add(new AD(11, "C", "0.5"));
+        g.add(new GCode(1, ""));
+        g.add(new DAperture(10));
+        return g;
+    }
+
+    private void assertElement(QPainterPath path, int index, boolean move, double x, double y) {
+        var e = path.elementAt(index);
+        assertEquals(move, e.isMoveTo());
+        assertEquals(x, e.x());
+        assertEquals(y, e.y());
+    }
+
+    @Test
+    void tracesTest() {
+        // Traces of one aperture go into one stroke
+        var g = gerber();
+        g.add(2, 0, 0);
+        g.add(1, 5, 0);
+        g.add(2, 0, 2);
+        g.add(1, 5, 2);
+        g.add(new DAperture(11));
+        g.add(2, 0, 4);
+        g.add(1, 5, 4);
+
+        var r = record(g);
+        assertEquals(2, r.getStrokes().size());
+        var path = r.getStrokes().get(0).getPath();
+        assertEquals(4, path.elementCount());
+        assertElement(path, 0, true, 0, 0);
+        assertElement(path, 1, false, 5, 0);
+        assertElement(path, 2, true, 0, 2);
+        assertElement(path, 3, false, 5, 2);
+        assertEquals(2, r.getStrokes().get(0).getBounds().getMaxY());
+        assertElement(r.getStrokes().get(1).getPath(), 0, true, 0, 4);
+    }
+
+    @Test
+    void lineAfterFlashTest() {
+        var g = gerber();
+        g.add(2, 0, 0);
+        g.add(1, 5, 0);
+        g.add(3, 10, 10);
+        g.add(1, 15, 10);
+
+        var r = record(g);
+        assertEquals(1, r.getStrokes().size());
+        var path = r.getStrokes().get(0).getPath();
+        assertEquals(4, path.elementCount());
+        assertElement(path, 0, true, 0, 0);
+        assertElement(path, 1, false, 5, 0);
+        assertElement(path, 2, true, 10, 10);
+        assertElement(path, 3, false, 15, 10);
+        assertEquals(1, r.getFlashes().values().iterator().next().getCount());
+    }
+}